@@ -1,58 +1,255 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.nio.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Project3.java
  * Java implementation for CS4348 Project 3 (B-Tree index file).
  *
- * Block size: 512 bytes
+ * Block size: chosen at create (--page-size, 512 bytes to 64 KB, default 4096)
  * Header (block 0):
- *   8 bytes: magic "4348PRJ3" (ASCII)
- *   8 bytes: root block id (0 if empty)
- *   8 bytes: next block id
- *   remaining unused
+ *   offset  0, 8 bytes: magic "4348PRJ3" (ASCII)
+ *   offset  8, 8 bytes: root block id (0 if empty)
+ *   offset 16, 8 bytes: next block id
+ *   offset 24, 4 bytes: format version (0 in files from before the geometry was stored)
+ *   offset 28, 4 bytes: block size in bytes (0 in version 0: 512)
+ *   offset 32, 4 bytes: minimal degree t (0 in version 0: 10)
+ *   offset 36, 4 bytes: format flags (bit 0: compressed nodes, bit 1: B+tree)
+ *   offset 40, 8 bytes: last write-ahead log generation merged into the tree (0: none)
+ *   offset 48, 8 bytes: pairs of the generation after that one, in the merge's
+ *                       key order, already in the tree (0 unless a merge was cut short)
+ *   remaining unused (zero in older files, which read as nothing merged)
  *
  * Node block:
  *   8 bytes: block id
  *   8 bytes: parent block id (0 if none/root)
- *   8 bytes: num_keys
- *   keys: 19 * 8 bytes = 152
- *   values: 19 * 8 bytes = 152
- *   children: 20 * 8 bytes = 160
- *   unused -> pad to 512
+ *   4 bytes: flags (bit 0: leaf; always 0 in version 0 files)
+ *   4 bytes: num_keys
+ *   keys: (2t-1) * 8 bytes
+ *   values: (2t-1) * 8 bytes
+ *   children: 2t * 8 bytes
+ *   unused -> pad to the block size
  *
- * B-tree minimal degree t = 10 -> max keys = 19, max children = 20
+ * Compressed node block (create --compress): same 24-byte node header, then
+ *   keys: first key, then the gap to each next key, as unsigned varints
+ *   values: one unsigned varint each
+ *   children: one unsigned varint each (internal nodes only)
+ *   unused -> pad to the block size
+ * A compressed node holds up to 4 * (2t-1) keys and splits when the block
+ * might not fit one more entry.
  *
- * LRU cache of nodes: capacity = 3
+ * B+tree variant (create --bplus): every pair lives in a leaf; internal nodes
+ * hold only separator keys (a key equal to a separator is found to its right).
+ * Leaves are chained in key order: a leaf's first child slot holds the next
+ * leaf's block id (compressed: a varint after the values), so scans stream
+ * from leaf to leaf.
+ *
+ * B-tree minimal degree t: chosen at create (--degree), by default the largest
+ * that fits the block (a node takes 48t + 8 bytes: t = 10 for 512, 85 for 4096)
+ *
+ * A key may be inserted more than once: its copies are kept in insertion order
+ * (print, extract and range list them all), and a search answers with the newest.
+ *
+ * Buffer pool of nodes (--cache=N pages, or e.g. --cache=8MB): pages are pinned
+ * while in use and evicted with CLOCK; dirty pages are written back in batches.
+ * With --mmap, pool misses are decoded directly from a read-only mapping.
+ * Scans and batched searches read pages into the pool ahead of need on a few
+ * I/O threads (--prefetch=N pages ahead, default 8; 0 turns it off): the next
+ * children of each node a traversal is under, the next leaves of a B+tree
+ * chain, and the children the next probes of search-batch descend to.
+ *
+ * Durability (--sync=always|commit|none, default commit):
+ *   always: every block and header write is forced to disk (fsync)
+ *   commit: dirty blocks and the header are written back and forced once
+ *           per commit (end of command, or every few thousand rows on load)
+ *   none:   writes are never forced; the OS flushes them eventually
+ * With --memtable=N, inserts are buffered in memory and appended to a
+ * write-ahead log next to the index (forced per the same modes); every N
+ * inserts the buffer is merged into the tree in key order. Logs left by a
+ * crash are replayed on the next open.
+ *
+ * Bloom filter (create --bloom, or the bloom command on an existing index):
+ * filename.bloom holds a Bloom filter over every key, kept up to date by
+ * insert and load and checked before a search reads any page. One left
+ * in use by a crash is ignored until rebuilt.
+ *
+ * compact rewrites an index (into a new file, or in place through a temporary
+ * file and an atomic rename) as if bulk loaded at --fill: nodes packed to the
+ * fill, leaves in key order at the front of the file, then each level above.
+ *
+ * load --sort sorts the rows before inserting them: sorted runs of at most
+ * --sort-memory (default a quarter of the heap) are spilled to temporary files
+ * next to the index, then merged into the tree in key order.
+ *
+ * Sharded index (create --shards=N): filename becomes a manifest, and the
+ * pairs live in N ordinary index files filename.shard0 ... filename.shard<N-1>,
+ * each key in the shard picked by a hash of the key (--partition=hash, the
+ * default) or by key range (--partition=range, split evenly over the unsigned
+ * keys or at --split-keys). Every command but serve works on it: point
+ * operations go to one shard, load runs one thread per shard, and ordered
+ * output merges the shards' sorted streams.
+ * Manifest:
+ *   8 bytes: magic "4348SHRD" (ASCII)
+ *   4 bytes: manifest version (1)
+ *   4 bytes: shard count N
+ *   4 bytes: partitioning (0: hash, 1: range)
+ *   range only: N-1 split keys, ascending; shard i holds the keys from split
+ *   i-1 (inclusive, 0 for shard 0) up to split i (exclusive)
  *
  * Commands:
  *   create filename
+ *   create filename --shards=N [--partition=hash|range [--split-keys=k1,k2,...]]
  *   insert filename key value
  *   search filename key
- *   load filename input.csv
+ *   load filename input.csv [--bulk [--fill=F] | --sort [--sort-memory=SIZE]]
  *   print filename
  *   extract filename output.csv
+ *   range filename lo hi [limit]
+ *   search-batch filename keys.txt output.csv
+ *   serve filename [--socket=path]   (requests on stdin or a Unix socket)
+ *   stats filename                   (height, node count, fill, file size)
+ *   bloom filename                   (build or rebuild filename.bloom)
+ *   compact filename [output.idx] [--fill=F]   (rewrite packed, in place or to output.idx)
  */
 public class Project3 {
 
     // Constants
-    private static final int BLOCK_SIZE = 512;
     private static final byte[] MAGIC = "4348PRJ3".getBytes(); // exactly 8 bytes
     private static final long NO_BLOCK = 0L;
 
-    // B-tree params
-    private static final int T = 10;
-    private static final int MAX_KEYS = 2 * T - 1;   // 19
-    private static final int MAX_CHILDREN = MAX_KEYS + 1; // 20
+    // Page geometry. Block size and degree are fixed per file at create time;
+    // version 0 files predate that and always use 512-byte blocks with t = 10.
+    private static final int FORMAT_VERSION = 1;
+    private static final int MIN_BLOCK_SIZE = 512;
+    private static final int MAX_BLOCK_SIZE = 64 * 1024;
+    private static final int DEFAULT_BLOCK_SIZE = 4096;
+    private static final int LEGACY_DEGREE = 10;
+    private static final int NODE_HEADER_BYTES = 24;   // id, parent, flags + num_keys
+    private static final int NODE_LEAF = 1;             // node flags bit
+    private static final int FORMAT_COMPRESSED = 1;     // header format flags bits
+    private static final int FORMAT_BPLUS = 2;
+    // compressed nodes: key capacity relative to the fixed layout (bounds Node
+    // memory), and the most bytes one new entry can add (key gap, value, child)
+    private static final int COMPRESSED_KEYS_FACTOR = 4;
+    private static final int MAX_VARLONG_BYTES = 10;
+    private static final int MAX_ENTRY_BYTES = 3 * MAX_VARLONG_BYTES;
 
-    // LRU cache capacity
-    private static final int CACHE_CAPACITY = 3;
+    // buffer pool size in pages; the floor leaves room for the pins of a descent
+    private static final int DEFAULT_CACHE_PAGES = 4096;
+    private static final int MIN_CACHE_PAGES = 32;
+    // dirty pages written back together when a dirty page is evicted
+    private static final int WRITEBACK_BATCH = 32;
+    // how long a thread waits for a pinned-full pool to free a frame
+    private static final int POOL_WAIT_ATTEMPTS = 50;
+    private static final long POOL_WAIT_MILLIS = 100;
+    // --mmap maps the index in pieces of this size (a multiple of every block size)
+    private static final long MMAP_SEGMENT_BYTES = 1L << 30;
+    // parallel print/extract: subtrees handed out per worker thread
+    private static final int SEGMENTS_PER_THREAD = 4;
+    // parallel print/extract: per-worker output buffer
+    private static final int FORMAT_BUFFER_BYTES = 1 << 16;
+    // --prefetch: default pages read ahead of a scan or batched search (at most
+    // a quarter of the pool), the I/O threads reading them and reads queued
+    private static final int PREFETCH_PAGES = 8;
+    private static final int PREFETCH_THREADS = 4;
+    private static final int PREFETCH_QUEUE = 256;
+
+    // bulk load: default fraction of the max keys packed into each node
+    private static final double BULK_FILL_FACTOR = 1.0;
+    // a full node on the tree's right edge keeps this fraction of its keys when
+    // split by an out-of-order insert (appends keep all but one)
+    private static final double RIGHT_EDGE_FILL = 0.9;
+    // number of consecutive blocks gathered into one write (bulk load, write-back)
+    private static final int WRITE_BATCH_BLOCKS = 64;
+
+    // load: rows inserted between group commits
+    private static final int LOAD_COMMIT_ROWS = 4096;
+    // load --sort: smallest run buffer in pairs, read/write buffer per run
+    // file, and most runs merged at once (more are merged in passes)
+    private static final int SORT_MIN_RUN_PAIRS = 1 << 16;
+    private static final int SORT_IO_BYTES = 1 << 16;
+    private static final int SORT_MERGE_WAYS = 128;
+    private static final String SORT_WITH_BULK = "--sort is for row-by-row loads (--bulk sorts in memory)";
+    // load: CSV read size, pairs per hand-off batch, and batches queued ahead
+    private static final int CSV_CHUNK_BYTES = 1 << 22;
+    private static final int CSV_BATCH_PAIRS = 8192;
+    private static final int CSV_QUEUE_BATCHES = 4;
+
+    // sharded index manifest: magic, version and the most shards
+    private static final byte[] SHARD_MAGIC = "4348SHRD".getBytes();
+    private static final int SHARD_MANIFEST_VERSION = 1;
+    private static final int MAX_SHARDS = 256;
+
+    // --memtable write-ahead log: file magic and write buffer size
+    private static final byte[] WAL_MAGIC = "4348WAL1".getBytes();
+    private static final int WAL_BUFFER_BYTES = 1 << 16;
+
+    // Bloom filter sidecar: file magic; bits per key and room for growth when
+    // sized (a filter is never smaller than BLOOM_MIN_KEYS keys' worth); the
+    // fill at which close() rebuilds it bigger; largest size (2^33 bits, 1 GB);
+    // words per write-back chunk
+    private static final byte[] BLOOM_MAGIC = "4348BLM1".getBytes();
+    private static final int BLOOM_BITS_PER_KEY = 10;
+    private static final int BLOOM_HEADROOM = 2;
+    private static final long BLOOM_MIN_KEYS = 1 << 14;
+    private static final double BLOOM_MAX_FILL = 0.5;
+    private static final int BLOOM_MAX_LOG_BITS = 33;
+    private static final int BLOOM_CHUNK_WORDS = 512;
+
+    enum SyncMode {
+        ALWAYS, COMMIT, NONE;
+
+        static SyncMode parse(String s) {
+            switch (s.toLowerCase()) {
+                case "always": return ALWAYS;
+                case "commit": return COMMIT;
+                case "none": return NONE;
+                default: throw new IllegalArgumentException("unknown sync mode: " + s);
+            }
+        }
+    }
 
     // Main
-    public static void main(String[] args) {
+    public static void main(String[] argv) {
+        // options are "--name" or "--name=value" and may appear anywhere
+        Map<String, String> opts = new HashMap<>();
+        String[] args = parseOptions(argv, opts);
         if (args.length < 2) {
             usage();
             return;
@@ -61,50 +258,109 @@ public class Project3 {
         String filename = args[1];
 
         try {
+            BTree.Options options = BTree.Options.fromFlags(opts);
+            if (opts.containsKey("server") && (cmd.equals("insert") || cmd.equals("search") || cmd.equals("range"))) {
+                // the serving process owns the index; file is not opened here
+                sendToServer(opts.get("server"), cmd + " " + String.join(" ", Arrays.copyOfRange(args, 2, args.length)));
+                return;
+            }
+            if (cmd.equals("create") ? options.shards > 0 : ShardedIndex.isManifest(Paths.get(filename))) {
+                runSharded(cmd, args, opts, options);
+                return;
+            }
             switch (cmd) {
                 case "create":
-                    create(filename);
+                    create(filename, options.pageSize, options.degree, options.formatFlags());
+                    if (options.bloom) createBloom(filename, options);
                     break;
                 case "insert":
                     if (args.length != 4) { System.err.println("insert needs: file key value"); return; }
                     long key = parseUnsignedLong(args[2]);
                     long value = parseUnsignedLong(args[3]);
-                    try (BTree bt = new BTree(filename, /*createIfMissing*/ false)) {
+                    try (BTree bt = new BTree(filename, /*createIfMissing*/ false, options)) {
                         bt.insert(key, value);
                     }
                     break;
                 case "search":
                     if (args.length != 3) { System.err.println("search needs: file key"); return; }
                     long sk = parseUnsignedLong(args[2]);
-                    try (BTree bt = new BTree(filename, false)) {
-                        BTree.Result r = bt.search(sk);
-                        if (r.found) {
-                            System.out.println(r.key + "," + r.value);
-                        } else {
-                            System.err.println("Error: key not found");
-                            System.exit(1);
-                        }
+                    boolean hit;
+                    try (BTree bt = new BTree(filename, false, options)) {
+                        long[] found = new long[1];
+                        hit = bt.lookup(sk, found);
+                        if (hit) System.out.println(Long.toUnsignedString(sk) + "," + Long.toUnsignedString(found[0]));
+                    }
+                    if (!hit) {
+                        System.err.println("Error: key not found");
+                        System.exit(1);
                     }
                     break;
                 case "load":
                     if (args.length != 3) { System.err.println("load needs: file input.csv"); return; }
                     String csvIn = args[2];
-                    try (BTree bt = new BTree(filename, false)) {
-                        loadCsvAndInsert(bt, csvIn);
+                    if (opts.containsKey("bulk") && options.sort) throw new IllegalArgumentException(SORT_WITH_BULK);
+                    try (BTree bt = new BTree(filename, false, options)) {
+                        if (opts.containsKey("bulk")) {
+                            bulkLoadCsv(bt, csvIn, parseFillFactor(opts.get("fill")));
+                        } else {
+                            loadCsvAndInsert(bt, csvIn);
+                        }
                     }
                     break;
                 case "print":
-                    try (BTree bt = new BTree(filename, false)) {
+                    try (BTree bt = new BTree(filename, false, options)) {
                         bt.printAll();
                     }
                     break;
                 case "extract":
                     if (args.length != 3) { System.err.println("extract needs: file output.csv"); return; }
                     String csvOut = args[2];
-                    try (BTree bt = new BTree(filename, false)) {
+                    try (BTree bt = new BTree(filename, false, options)) {
                         bt.extractCsv(csvOut);
                     }
                     break;
+                case "search-batch":
+                    if (args.length != 4) { System.err.println("search-batch needs: file keys.txt output.csv"); return; }
+                    try (BTree bt = new BTree(filename, false, options)) {
+                        searchBatch(bt::lookupSorted, args[2], args[3]);
+                    }
+                    break;
+                case "range":
+                    if (args.length != 4 && args.length != 5) { System.err.println("range needs: file lo hi [limit]"); return; }
+                    long lo = parseUnsignedLong(args[2]);
+                    long hi = parseUnsignedLong(args[3]);
+                    long limit = args.length == 5 ? Long.parseLong(args[4]) : Long.MAX_VALUE;
+                    try (BTree bt = new BTree(filename, false, options)) {
+                        printRange(bt.cursor(lo, hi), limit);
+                    }
+                    break;
+                case "stats":
+                    try (BTree bt = new BTree(filename, false, options)) {
+                        bt.printTreeStats(System.out);
+                    }
+                    break;
+                case "compact":
+                    if (args.length != 2 && args.length != 3) { System.err.println("compact needs: file [output.idx]"); return; }
+                    compact(filename, args.length == 3 ? args[2] : null, options, parseFillFactor(opts.get("fill")));
+                    break;
+                case "bloom":
+                    try (BTree bt = new BTree(filename, false, options)) {
+                        long added = bt.rebuildBloom(-1, options.bloomBits);
+                        System.out.println("Built Bloom filter " + BloomFilter.filterPath(Paths.get(filename))
+                                + " over " + added + " keys");
+                    }
+                    break;
+                case "serve":
+                    BTree served = new BTree(filename, false, options);
+                    Server server = new Server(served);
+                    try {
+                        if (opts.containsKey("socket")) server.serveSocket(Paths.get(opts.get("socket")));
+                        else server.serveStdin();
+                    } finally {
+                        served.close();
+                        server.closed();
+                    }
+                    break;
                 default:
                     System.err.println("Unknown command: " + cmd);
                     usage();
@@ -113,17 +369,128 @@ public class Project3 {
             System.err.println("I/O error: " + e.getMessage());
             e.printStackTrace();
             System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Commands on a sharded index: the same arguments, run across its shards.
+    private static void runSharded(String cmd, String[] args, Map<String, String> opts, BTree.Options options)
+            throws IOException {
+        String filename = args[1];
+        if (cmd.equals("create")) {
+            ShardedIndex.create(filename, options);
+            return;
+        }
+        if (cmd.equals("compact")) {
+            if (args.length != 2 && args.length != 3) { System.err.println("compact needs: file [output.idx]"); return; }
+            ShardedIndex.compact(filename, args.length == 3 ? args[2] : null, options, parseFillFactor(opts.get("fill")));
+            return;
+        }
+        boolean hit = true;
+        try (ShardedIndex index = new ShardedIndex(filename, options)) {
+            switch (cmd) {
+                case "insert":
+                    if (args.length != 4) { System.err.println("insert needs: file key value"); return; }
+                    index.insert(parseUnsignedLong(args[2]), parseUnsignedLong(args[3]));
+                    break;
+                case "search":
+                    if (args.length != 3) { System.err.println("search needs: file key"); return; }
+                    long key = parseUnsignedLong(args[2]);
+                    long[] found = new long[1];
+                    hit = index.lookup(key, found);
+                    if (hit) System.out.println(Long.toUnsignedString(key) + "," + Long.toUnsignedString(found[0]));
+                    break;
+                case "load":
+                    if (args.length != 3) { System.err.println("load needs: file input.csv"); return; }
+                    if (opts.containsKey("bulk") && options.sort) throw new IllegalArgumentException(SORT_WITH_BULK);
+                    if (opts.containsKey("bulk")) index.bulkLoadCsv(args[2], parseFillFactor(opts.get("fill")));
+                    else index.loadCsv(args[2]);
+                    break;
+                case "print":
+                    index.printAll();
+                    break;
+                case "extract":
+                    if (args.length != 3) { System.err.println("extract needs: file output.csv"); return; }
+                    index.extractCsv(args[2]);
+                    break;
+                case "search-batch":
+                    if (args.length != 4) { System.err.println("search-batch needs: file keys.txt output.csv"); return; }
+                    searchBatch(index::lookupSorted, args[2], args[3]);
+                    break;
+                case "range":
+                    if (args.length != 4 && args.length != 5) { System.err.println("range needs: file lo hi [limit]"); return; }
+                    long lo = parseUnsignedLong(args[2]);
+                    long hi = parseUnsignedLong(args[3]);
+                    printRange(index.cursor(lo, hi), args.length == 5 ? Long.parseLong(args[4]) : Long.MAX_VALUE);
+                    break;
+                case "stats":
+                    index.printStats(System.out);
+                    break;
+                case "bloom":
+                    index.rebuildBloom(options.bloomBits);
+                    break;
+                default:
+                    throw new IllegalArgumentException(cmd + " is not supported on a sharded index");
+            }
+        }
+        if (!hit) {
+            System.err.println("Error: key not found");
+            System.exit(1);
         }
     }
 
     private static void usage() {
         System.out.println("Usage:");
-        System.out.println("  java Project3 create file.idx");
+        System.out.println("  java Project3 create file.idx [--page-size=512..64KB] [--degree=t] [--compress] [--bplus] [--bloom]");
+        System.out.println("  java Project3 create file.idx --shards=N [--partition=hash|range [--split-keys=k1,k2,...]]");
         System.out.println("  java Project3 insert file.idx <key> <value>");
         System.out.println("  java Project3 search file.idx <key>");
-        System.out.println("  java Project3 load file.idx input.csv");
+        System.out.println("  java Project3 load file.idx input.csv [--bulk [--fill=0.5..1.0] | --sort [--sort-memory=<n>MB]]");
         System.out.println("  java Project3 print file.idx");
         System.out.println("  java Project3 extract file.idx output.csv");
+        System.out.println("  java Project3 range file.idx <lo> <hi> [limit]");
+        System.out.println("  java Project3 search-batch file.idx keys.txt output.csv");
+        System.out.println("  java Project3 serve file.idx [--socket=path]");
+        System.out.println("  java Project3 stats file.idx");
+        System.out.println("  java Project3 bloom file.idx [--bloom-bits=N]");
+        System.out.println("  java Project3 compact file.idx [output.idx] [--fill=0.5..1.0]");
+        System.out.println("Options:");
+        System.out.println("  --sync=always|commit|none   durability of block writes (default commit)");
+        System.out.println("  --cache=<pages>|<n>KB|<n>MB buffer pool size (default " + DEFAULT_CACHE_PAGES + " pages; per shard)");
+        System.out.println("  --mmap                      read blocks through a memory mapping of the file");
+        System.out.println("  --prefetch=N                pages read ahead of scans and batched searches (default " + PREFETCH_PAGES + "; 0: off)");
+        System.out.println("  --threads=N                 worker threads for print/extract (default: cores)");
+        System.out.println("  --memtable=N                buffer N inserts in memory (logged to file.idx.wal.*)");
+        System.out.println("                              and merge them into the tree in key order");
+        System.out.println("  --bloom-bits=N              Bloom filter bits per key when one is built (default " + BLOOM_BITS_PER_KEY + ")");
+        System.out.println("  --stats                     print I/O, cache and latency counters when done");
+        System.out.println("  --server=path               send insert/search/range to a running serve --socket");
+    }
+
+    private static String[] parseOptions(String[] argv, Map<String, String> opts) {
+        List<String> positional = new ArrayList<>();
+        for (String a : argv) {
+            if (a.startsWith("--") && a.length() > 2) {
+                int eq = a.indexOf('=');
+                if (eq < 0) opts.put(a.substring(2).toLowerCase(), "true");
+                else opts.put(a.substring(2, eq).toLowerCase(), a.substring(eq + 1));
+            } else {
+                positional.add(a);
+            }
+        }
+        return positional.toArray(new String[0]);
+    }
+
+    private static double parseFillFactor(String s) {
+        if (s == null) return BULK_FILL_FACTOR;
+        double f = Double.parseDouble(s);
+        if (!(f > 0.0 && f <= 1.0)) {
+            System.err.println("Error: fill factor must be in (0, 1]");
+            System.exit(1);
+        }
+        return f;
     }
 
     private static long parseUnsignedLong(String s) {
@@ -131,399 +498,3613 @@ public class Project3 {
         return Long.parseUnsignedLong(s);
     }
 
-    private static void create(String filename) throws IOException {
+    // degree 0 picks the largest degree that fits the block
+    private static void create(String filename, int blockSize, int degree, int formatFlags) throws IOException {
+        if (degree == 0) degree = maxDegree(blockSize);
+        if (!validGeometry(blockSize, degree)) {
+            throw new IllegalArgumentException("page size must be a power of two from " + MIN_BLOCK_SIZE
+                    + " to " + MAX_BLOCK_SIZE + " and degree from 2 to " + maxDegree(blockSize));
+        }
         Path p = Paths.get(filename);
         if (Files.exists(p)) {
             System.err.println("Error: file already exists");
             System.exit(1);
         }
+        writeEmptyIndex(filename, blockSize, degree, formatFlags);
+        System.out.println("Created index file: " + filename);
+    }
+
+    private static void writeEmptyIndex(String filename, int blockSize, int degree, int formatFlags) throws IOException {
         try (RandomAccessFile raf = new RandomAccessFile(filename, "rw")) {
-            // Create header block (512 bytes)
-            ByteBuffer buf = ByteBuffer.allocate(BLOCK_SIZE);
+            // Create header block (one full block)
+            ByteBuffer buf = ByteBuffer.allocate(blockSize);
             buf.order(ByteOrder.BIG_ENDIAN);
-            // magic 8 bytes
-            buf.put(MAGIC);
-            // root id = 0 (empty)
-            buf.putLong(NO_BLOCK);
-            // next block id = 1
-            buf.putLong(1L);
+            // root id = 0 (empty), next block id = 1
+            putHeader(buf, NO_BLOCK, 1L, FORMAT_VERSION, blockSize, degree, formatFlags, 0L, 0L);
             // rest unused (zeros)
-            buf.position(BLOCK_SIZE);
+            buf.position(blockSize);
             buf.flip();
             raf.getChannel().write(buf, 0);
-            System.out.println("Created index file: " + filename);
         }
     }
 
-    private static void loadCsvAndInsert(BTree bt, String csvIn) throws IOException {
-        Path p = Paths.get(csvIn);
-        if (!Files.exists(p)) {
-            System.err.println("Error: CSV file does not exist");
+    // an empty Bloom filter next to a new index
+    private static void createBloom(String filename, BTree.Options options) throws IOException {
+        new BloomFilter(BloomFilter.filterPath(Paths.get(filename)), 0, options.bloomBits, options.sync,
+                new LongAdder()).save();
+    }
+
+    // header fields in file order; version 0 leaves the geometry fields zero
+    private static void putHeader(ByteBuffer buf, long root, long next, int version, int blockSize, int degree,
+                                  int formatFlags, long walApplied, long walMerged) {
+        buf.put(MAGIC);
+        buf.putLong(root);
+        buf.putLong(next);
+        buf.putInt(version);
+        buf.putInt(version == 0 ? 0 : blockSize);
+        buf.putInt(version == 0 ? 0 : degree);
+        buf.putInt(formatFlags);
+        buf.putLong(walApplied);
+        buf.putLong(walMerged);
+    }
+
+    // a node takes NODE_HEADER_BYTES + 16 * (2t-1) + 8 * 2t = 48t + 8 bytes
+    private static int maxDegree(int blockSize) {
+        return (blockSize - NODE_HEADER_BYTES + 16) / 48;
+    }
+
+    private static boolean validGeometry(int blockSize, int degree) {
+        return blockSize >= MIN_BLOCK_SIZE && blockSize <= MAX_BLOCK_SIZE && Integer.bitCount(blockSize) == 1
+                && degree >= 2 && degree <= maxDegree(blockSize);
+    }
+
+    // the pairs of a range cursor in order, at most limit of them
+    private static void printRange(PairCursor c, long limit) throws IOException {
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+        for (long n = 0; n < limit && c.next(); n++) {
+            out.println(Long.toUnsignedString(c.key()) + "," + Long.toUnsignedString(c.value()));
+        }
+        out.flush();
+    }
+
+    // Resolve every key listed in keysIn (one per line; a CSV's first column
+    // works too) in one ordered pass. Found pairs go to csvOut in key order.
+    private static void searchBatch(SortedLookup index, String keysIn, String csvOut) throws IOException {
+        Path in = Paths.get(keysIn);
+        Path out = Paths.get(csvOut);
+        if (!Files.exists(in)) {
+            System.err.println("Error: keys file does not exist");
+            System.exit(1);
+        }
+        if (Files.exists(out)) {
+            System.err.println("Error: output file already exists");
             System.exit(1);
         }
-        try (BufferedReader br = Files.newBufferedReader(p)) {
+        PairList probes = new PairList();
+        try (BufferedReader br = Files.newBufferedReader(in)) {
             String line;
             while ((line = br.readLine()) != null) {
                 line = line.trim();
                 if (line.isEmpty()) continue;
-                String[] parts = line.split(",", -1);
-                if (parts.length < 2) {
+                int comma = line.indexOf(',');
+                String field = (comma < 0 ? line : line.substring(0, comma)).trim();
+                try {
+                    probes.add(parseUnsignedLong(field), 0L);
+                } catch (NumberFormatException e) {
                     System.err.println("Skipping malformed line: " + line);
-                    continue;
                 }
-                long k = parseUnsignedLong(parts[0].trim());
-                long v = parseUnsignedLong(parts[1].trim());
-                bt.insert(k, v);
             }
         }
+        probes.sortUnsigned();
+        int n = probes.size();
+        long[] values = new long[n];
+        boolean[] found = new boolean[n];
+        int hits = index.lookupSorted(probes.keys, n, values, found);
+        try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(out))) {
+            for (int i = 0; i < n; i++) {
+                if (found[i]) pw.println(Long.toUnsignedString(probes.keys[i]) + "," + Long.toUnsignedString(values[i]));
+            }
+        }
+        System.out.println("Found " + hits + " of " + n + " keys");
     }
 
-    // ---------- BTree class and node cache ----------
-    static class BTree implements Closeable {
-        private final RandomAccessFile raf;
-        private final FileChannel chan;
-        private long rootBlockId;
-        private long nextBlockId;
-        private final NodeCache cache;
+    // receives one parsed CSV row
+    interface PairSink {
+        void accept(long key, long value) throws IOException;
+    }
 
-        BTree(String filename, boolean createIfMissing) throws IOException {
-            Path path = Paths.get(filename);
-            if (!Files.exists(path)) {
-                if (createIfMissing) {
-                    create(filename);
-                } else {
-                    throw new FileNotFoundException("Index file not found: " + filename);
+    // pairs in unsigned key order (a BTree cursor, or the merge of a sharded index's)
+    interface PairCursor {
+        boolean next() throws IOException;
+        long key();
+        long value();
+    }
+
+    // batched lookup of probes sorted in unsigned order (see BTree.lookupSorted)
+    interface SortedLookup {
+        int lookupSorted(long[] keys, int n, long[] values, boolean[] found) throws IOException;
+    }
+
+    // inserts row by row; with --sync=commit every LOAD_COMMIT_ROWS rows share one force
+    private static void loadCsvAndInsert(BTree bt, String csvIn) throws IOException {
+        forEachLoadPair(csvIn, bt.indexPath, bt.options, new PairSink() {
+            private int pending = 0;
+
+            public void accept(long key, long value) throws IOException {
+                bt.insert(key, value);
+                if (++pending == LOAD_COMMIT_ROWS) {
+                    bt.commit();
+                    pending = 0;
                 }
             }
-            this.raf = new RandomAccessFile(filename, "rw");
-            this.chan = raf.getChannel();
-            readHeader();
-            this.cache = new NodeCache(CACHE_CAPACITY, this);
-        }
+        });
+    }
 
-        private void readHeader() throws IOException {
-            ByteBuffer buf = ByteBuffer.allocate(BLOCK_SIZE);
-            buf.order(ByteOrder.BIG_ENDIAN);
-            chan.read(buf, 0);
-            buf.flip();
-            byte[] magicBuf = new byte[8];
-            buf.get(magicBuf);
-            if (!Arrays.equals(magicBuf, MAGIC)) {
-                throw new IOException("Not a valid index file (magic mismatch)");
-            }
-            this.rootBlockId = buf.getLong();
-            this.nextBlockId = buf.getLong();
-            // rest unused
+    // bulk mode: gather all rows, sort them by unsigned key (unless already sorted)
+    // and build the tree bottom-up instead of inserting row by row
+    private static void bulkLoadCsv(BTree bt, String csvIn, double fill) throws IOException {
+        if (!bt.isEmpty()) {
+            System.err.println("Error: --bulk requires an empty index");
+            System.exit(1);
         }
+        PairList pairs = new PairList();
+        forEachCsvPair(csvIn, pairs::add);
+        if (!pairs.isSortedUnsigned()) pairs.sortUnsigned();
+        bt.bulkLoad(pairs, fill);
+    }
 
-        private void writeHeader() throws IOException {
-            ByteBuffer buf = ByteBuffer.allocate(BLOCK_SIZE);
-            buf.order(ByteOrder.BIG_ENDIAN);
-            buf.put(MAGIC);
-            buf.putLong(rootBlockId);
-            buf.putLong(nextBlockId);
-            // rest zeros
-            buf.position(BLOCK_SIZE);
-            buf.flip();
-            chan.write(buf, 0);
-            chan.force(true);
+    // Rewrite an index in key order: its pairs are read out with a cursor and
+    // bulk loaded at the given fill into a new file with the same geometry, so
+    // the leaves come out packed and in key order, one after another, with
+    // the internal levels after them. With no dst the new file is built next
+    // to src and renamed over it. Like load --bulk, the pairs are held in memory.
+    private static void compact(String src, String dst, BTree.Options options, double fill) throws IOException {
+        Path in = Paths.get(src);
+        Path out = dst != null ? Paths.get(dst) : in.resolveSibling(in.getFileName() + ".compact");
+        if (Files.exists(out)) {
+            System.err.println("Error: file already exists: " + out);
+            System.exit(1);
         }
-
-        // allocate new node: assign block id = nextBlockId, increment, write header
-        private Node allocateNode() throws IOException {
-            long id = nextBlockId;
-            nextBlockId++;
-            writeHeader();
-            Node n = new Node(id);
-            n.setDirty(true);
-            cache.put(n);
-            return n;
+        long before = Files.exists(in) ? Files.size(in) : 0;
+        PairList pairs;
+        int blockSize, degree, formatFlags;
+        boolean bloom;
+        try (BTree bt = new BTree(src, false, options)) {
+            pairs = bt.pairs();
+            blockSize = bt.blockSize;
+            degree = bt.degree;
+            formatFlags = bt.formatFlags;
+            bloom = bt.bloom != null;
         }
-
-        // read node from disk (or from cache)
-        private Node readNode(long blockId) throws IOException {
-            if (blockId == NO_BLOCK) return null;
-            Node n = cache.get(blockId);
-            if (n != null) return n;
-            // else read from disk
-            ByteBuffer buf = ByteBuffer.allocate(BLOCK_SIZE);
-            buf.order(ByteOrder.BIG_ENDIAN);
-            int read = chan.read(buf, blockId * (long)BLOCK_SIZE);
-            if (read != BLOCK_SIZE) {
-                throw new IOException("Failed to read full node block at " + blockId);
+        writeEmptyIndex(out.toString(), blockSize, degree, formatFlags);
+        if (bloom) createBloom(out.toString(), options);
+        try (BTree bt = new BTree(out.toString(), false, options)) {
+            bt.bulkLoad(pairs, fill);
+        }
+        long after = Files.size(out);
+        if (dst == null) {
+            // a filter goes along too; either one matches either file, as the keys are the same
+            Files.move(out, in, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            if (bloom) {
+                Files.move(BloomFilter.filterPath(out), BloomFilter.filterPath(in),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
             }
-            buf.flip();
-            long bid = buf.getLong();
-            long parent = buf.getLong();
-            long numKeys = buf.getLong();
-            Node node = new Node(bid);
-            node.parent = parent;
-            node.numKeys = (int)numKeys;
-            for (int i = 0; i < MAX_KEYS; i++) {
-                node.keys[i] = buf.getLong();
-            }
-            for (int i = 0; i < MAX_KEYS; i++) {
-                node.values[i] = buf.getLong();
-            }
-            for (int i = 0; i < MAX_CHILDREN; i++) {
-                node.children[i] = buf.getLong();
-            }
-            node.setDirty(false);
-            cache.put(node);
-            return node;
         }
+        System.out.println("Compacted " + src + (dst != null ? " into " + dst : "") + ": " + pairs.size()
+                + " pairs, " + before + " -> " + after + " bytes");
+    }
 
-        // write node to disk (immediate)
-        private void writeNode(Node node) throws IOException {
-            ByteBuffer buf = ByteBuffer.allocate(BLOCK_SIZE);
-            buf.order(ByteOrder.BIG_ENDIAN);
-            buf.putLong(node.blockId);
-            buf.putLong(node.parent);
-            buf.putLong(node.numKeys);
-            for (int i = 0; i < MAX_KEYS; i++) buf.putLong(node.keys[i]);
-            for (int i = 0; i < MAX_KEYS; i++) buf.putLong(node.values[i]);
-            for (int i = 0; i < MAX_CHILDREN; i++) buf.putLong(node.children[i]);
-            // pad remainder zeros implicitly by allocating fixed size and using put operations
-            buf.position(BLOCK_SIZE);
-            buf.flip();
-            chan.write(buf, node.blockId * (long)BLOCK_SIZE);
-            chan.force(true);
-            node.setDirty(false);
-        }
+    // the rows of a row-by-row load; with --sort they come in key order, by
+    // way of run files next to the index
+    private static void forEachLoadPair(String csvIn, Path index, BTree.Options options, PairSink sink)
+            throws IOException {
+        if (options.sort) ExternalSort.forEachSorted(csvIn, index.toAbsolutePath().getParent(), options, sink);
+        else forEachCsvPair(csvIn, sink);
+    }
 
-        // Exposed for NodeCache eviction
-        void flushNode(Node n) throws IOException {
-            if (n == null) return;
-            if (n.isDirty()) writeNode(n);
+    private static void forEachCsvPair(String csvIn, PairSink sink) throws IOException {
+        Path p = Paths.get(csvIn);
+        if (!Files.exists(p)) {
+            System.err.println("Error: CSV file does not exist");
+            System.exit(1);
         }
+        new CsvReader(p).forEach(sink);
+    }
 
-        // Search public
-        static class Result {
-            boolean found;
-            long key;
-            long value;
-            long nodeId;
-            int index;
-            Result(boolean f) { found = f; }
+    // Reads a CSV on its own thread and hands the parsed pairs to the caller
+    // in batches through a small bounded queue, so parsing overlaps the
+    // inserts. The file is read in large chunks and unsigned longs are parsed
+    // straight from the bytes; batches are recycled, so nothing is allocated
+    // per row. A line the byte parser does not take as-is (a sign, 20 digits,
+    // non-ASCII, a missing comma, ...) is decoded and handled exactly as the
+    // old readLine/trim/split loop did, so malformed lines are still reported
+    // and skipped, and a bad number still stops the load with its message once
+    // the rows before it have been delivered.
+    static final class CsvReader implements Runnable {
+        static final class Batch {
+            final long[] keys = new long[CSV_BATCH_PAIRS];
+            final long[] values = new long[CSV_BATCH_PAIRS];
+            int size;
+            boolean last;
+            Throwable error;   // set on the last batch if parsing failed
         }
 
-        Result search(long key) throws IOException {
-            if (rootBlockId == NO_BLOCK) return new Result(false);
-            return searchRecursive(rootBlockId, key);
+        private final Path path;
+        private final BlockingQueue<Batch> full = new ArrayBlockingQueue<>(CSV_QUEUE_BATCHES);
+        private final BlockingQueue<Batch> free = new ArrayBlockingQueue<>(CSV_QUEUE_BATCHES + 2);
+        private final Thread thread;
+        private Batch filling;
+
+        CsvReader(Path path) {
+            this.path = path;
+            for (int i = 0; i < CSV_QUEUE_BATCHES + 2; i++) free.add(new Batch());
+            this.thread = new Thread(this, "csv-reader");
+            thread.setDaemon(true);
         }
 
-        private Result searchRecursive(long blockId, long key) throws IOException {
-            Node n = readNode(blockId);
-            int i = 0;
-            while (i < n.numKeys && Long.compareUnsigned(key, n.keys[i]) > 0) i++;
-            if (i < n.numKeys && Long.compareUnsigned(key, n.keys[i]) == 0) {
-                Result r = new Result(true);
-                r.key = n.keys[i];
-                r.value = n.values[i];
-                r.nodeId = n.blockId;
-                r.index = i;
-                return r;
-            } else {
-                long child = n.children[i];
-                if (child == NO_BLOCK) return new Result(false);
-                return searchRecursive(child, key);
+        // feed every pair to sink, in file order
+        void forEach(PairSink sink) throws IOException {
+            thread.start();
+            try {
+                while (true) {
+                    Batch b = full.take();
+                    for (int i = 0; i < b.size; i++) sink.accept(b.keys[i], b.values[i]);
+                    if (b.error instanceof IOException) throw (IOException) b.error;
+                    if (b.error instanceof RuntimeException) throw (RuntimeException) b.error;
+                    if (b.error instanceof Error) throw (Error) b.error;
+                    if (b.last) return;
+                    b.size = 0;
+                    free.add(b);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("CSV load interrupted");
+            } finally {
+                // a failed insert leaves the reader blocked on a queue
+                thread.interrupt();
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
             }
         }
 
-        // Insert public
-        void insert(long key, long value) throws IOException {
-            if (rootBlockId == NO_BLOCK) {
-                // create root node
-                Node root = allocateNode();
-                root.parent = NO_BLOCK;
-                root.numKeys = 1;
-                root.keys[0] = key;
-                root.values[0] = value;
-                // all children zero by default
-                root.setDirty(true);
-                rootBlockId = root.blockId;
-                writeHeader();
-                flushNode(root); // ensure root written
+        @Override
+        public void run() {
+            try {
+                filling = free.take();
+            } catch (InterruptedException e) {
                 return;
             }
-            Node root = readNode(rootBlockId);
-            if (root.numKeys == MAX_KEYS) {
-                // split root
-                Node s = allocateNode();
-                s.parent = NO_BLOCK;
-                s.numKeys = 0;
-                s.children[0] = root.blockId;
-                root.parent = s.blockId;
-                s.setDirty(true);
-                root.setDirty(true);
-                // update root id
-                rootBlockId = s.blockId;
-                writeHeader();
-                splitChild(s, 0, root);
-                insertNonFull(s, key, value);
-            } else {
-                insertNonFull(root, key, value);
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+                byte[] buf = new byte[CSV_CHUNK_BYTES];
+                int start = 0, end = 0;   // unparsed bytes are buf[start, end)
+                boolean eof = false;
+                while (true) {
+                    int next;
+                    while (start < end && (next = parseLine(buf, start, end)) >= 0) start = next;
+                    if (eof) break;
+                    // keep the partial last line, growing the buffer if it fills it
+                    if (start == 0 && end == buf.length) {
+                        buf = Arrays.copyOf(buf, buf.length * 2);
+                    } else {
+                        System.arraycopy(buf, start, buf, 0, end - start);
+                        end -= start;
+                        start = 0;
+                    }
+                    int n = ch.read(ByteBuffer.wrap(buf, end, buf.length - end));
+                    if (n < 0) {
+                        // readLine returns a last line that has no line break
+                        eof = true;
+                        if (end > start) {
+                            if (end == buf.length) buf = Arrays.copyOf(buf, buf.length + 1);
+                            buf[end++] = '\n';
+                        }
+                    } else {
+                        end += n;
+                    }
+                }
+            } catch (InterruptedException | ClosedByInterruptException e) {
+                return;   // the consumer gave up
+            } catch (Throwable t) {
+                filling.error = t;
+            }
+            filling.last = true;
+            try {
+                full.put(filling);
+            } catch (InterruptedException e) {
+                // the consumer gave up
             }
         }
 
-        // split child y of parent x at index i
-        private void splitChild(Node x, int i, Node y) throws IOException {
-            // y is full (MAX_KEYS). Create z
-            Node z = allocateNode();
-            z.parent = x.blockId;
-            // z will take T-1 keys from y (i.e., keys T..MAX_KEYS-1 -> move)
-            z.numKeys = T - 1;
-            // copy keys and values
-            for (int j = 0; j < T - 1; j++) {
-                z.keys[j] = y.keys[j + T];
-                z.values[j] = y.values[j + T];
+        // Parse the line starting at pos. Returns the index just past its line
+        // break, or -1 if the line is not complete in buf[pos, end).
+        private int parseLine(byte[] buf, int pos, int end) throws InterruptedException {
+            int i = skipBlanks(buf, pos, end);
+            if (i == end) return -1;
+            if (isBreak(buf[i])) return i + 1;   // blank line
+            int digits = i;
+            long key = 0;
+            while (i < end && buf[i] >= '0' && buf[i] <= '9') key = key * 10 + (buf[i++] - '0');
+            boolean fast = i - digits >= 1 && i - digits <= 19;
+            i = skipBlanks(buf, i, end);
+            fast &= i < end && buf[i] == ',';
+            long value = 0;
+            if (fast) {
+                i = skipBlanks(buf, i + 1, end);
+                digits = i;
+                while (i < end && buf[i] >= '0' && buf[i] <= '9') value = value * 10 + (buf[i++] - '0');
+                fast = i - digits >= 1 && i - digits <= 19;
+                i = skipBlanks(buf, i, end);
+                // anything after a second comma is ignored, as split did
+                fast &= i < end && (buf[i] == ',' || isBreak(buf[i]));
             }
-            // copy children if any
-            for (int j = 0; j < T; j++) {
-                z.children[j] = y.children[j + T];
-                if (z.children[j] != NO_BLOCK) {
-                    try {
-                        Node child = readNode(z.children[j]);
-                        child.parent = z.blockId;
-                        child.setDirty(true);
-                    } catch (IOException ex) {
-                        throw new IOException("Failed updating child parent on split: " + ex.getMessage());
-                    }
-                }
+            int lineEnd = i;
+            while (lineEnd < end && !isBreak(buf[lineEnd])) {
+                if (buf[lineEnd] < 0) fast = false;   // non-ASCII: decode to be exact
+                lineEnd++;
+            }
+            if (lineEnd == end) return -1;
+            if (fast) {
+                add(key, value);
+            } else {
+                parseSlow(new String(buf, pos, lineEnd - pos, StandardCharsets.UTF_8));
             }
-            y.numKeys = T - 1;
+            return lineEnd + 1;
+        }
 
-            // shift x's children to make room
-            for (int j = x.numKeys; j >= i+1; j--) {
-                x.children[j+1] = x.children[j];
+        // the original line handling, for whatever the byte parser turned down
+        private void parseSlow(String line) throws InterruptedException {
+            line = line.trim();
+            if (line.isEmpty()) return;
+            String[] parts = line.split(",", -1);
+            if (parts.length < 2) {
+                System.err.println("Skipping malformed line: " + line);
+                return;
             }
-            x.children[i+1] = z.blockId;
+            long k = parseUnsignedLong(parts[0].trim());
+            long v = parseUnsignedLong(parts[1].trim());
+            add(k, v);
+        }
 
-            // shift keys/values in x to make room for median
-            for (int j = x.numKeys - 1; j >= i; j--) {
-                x.keys[j+1] = x.keys[j];
-                x.values[j+1] = x.values[j];
+        private void add(long key, long value) throws InterruptedException {
+            Batch b = filling;
+            b.keys[b.size] = key;
+            b.values[b.size] = value;
+            if (++b.size == CSV_BATCH_PAIRS) {
+                full.put(b);
+                filling = free.take();
             }
+        }
 
-            // median key = y.keys[T-1] moves up to x
-            x.keys[i] = y.keys[T-1];
-            x.values[i] = y.values[T-1];
-            x.numKeys = x.numKeys + 1;
+        // readLine ends a line at \n, \r or \r\n; the empty "line" between
+        // \r and \n is skipped like any blank line
+        private static boolean isBreak(byte b) {
+            return b == '\n' || b == '\r';
+        }
 
-            x.setDirty(true);
-            y.setDirty(true);
-            z.setDirty(true);
+        // String.trim drops every char up to ' '
+        private static int skipBlanks(byte[] buf, int i, int end) {
+            while (i < end && buf[i] >= 0 && buf[i] <= ' ' && !isBreak(buf[i])) i++;
+            return i;
         }
+    }
 
-        // insert into node known to be non-full
-        private void insertNonFull(Node x, long key, long value) throws IOException {
-            int i = x.numKeys - 1;
-            if (isLeaf(x)) {
-                // shift to make space
-                while (i >= 0 && Long.compareUnsigned(key, x.keys[i]) < 0) {
-                    x.keys[i+1] = x.keys[i];
-                    x.values[i+1] = x.values[i];
-                    i--;
-                }
-                // Insert at i+1 (if equal keys allowed? spec doesn't forbid duplicates — we'll allow duplicates and insert after existing)
-                int pos = i+1;
-                x.keys[pos] = key;
-                x.values[pos] = value;
-                x.numKeys++;
-                x.setDirty(true);
-                return;
-            } else {
-                // find child index
-                while (i >= 0 && Long.compareUnsigned(key, x.keys[i]) < 0) i--;
-                int childIndex = i+1;
-                long childId = x.children[childIndex];
-                Node child = readNode(childId);
-                if (child.numKeys == MAX_KEYS) {
-                    splitChild(x, childIndex, child);
-                    // after split, the middle key moves up to x.keys[childIndex]
-                    if (Long.compareUnsigned(key, x.keys[childIndex]) > 0) {
-                        childIndex = childIndex + 1;
+    // serve: one open BTree (warm buffer pool) answering line requests from
+    // stdin, or from every connection to a Unix domain socket. Requests may be
+    // pipelined; each gets its reply in order:
+    //   insert <key> <value>     -> OK
+    //   search <key>             -> <key>,<value> | NOTFOUND
+    //   range <lo> <hi> [limit]  -> <key>,<value> lines, then END
+    //   commit                   -> OK
+    //   quit                     -> closes the connection
+    //   shutdown                 -> OK, then stops the server (socket only)
+    // A bad request gets "ERR <message>". Replies are held until no more input
+    // is buffered; inserts since the last commit are committed once at that
+    // point (group commit), so an OK means the insert is durable per --sync.
+    static class Server {
+        private final BTree bt;
+        private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private volatile ServerSocketChannel listening;
+        private volatile boolean stopping;
+
+        Server(BTree bt) {
+            this.bt = bt;
+        }
+
+        void serveStdin() throws IOException {
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.US_ASCII));
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.US_ASCII));
+            handle(in, out, false);
+        }
+
+        // one pooled thread per connection (a cached pool: the JDK this builds
+        // on has no virtual threads). Returns after a shutdown request or signal.
+        void serveSocket(Path socketPath) throws IOException {
+            if (Files.exists(socketPath)) {
+                throw new IllegalArgumentException("socket path already exists: " + socketPath);
+            }
+            ExecutorService workers = Executors.newCachedThreadPool();
+            Thread hook = new Thread(() -> {
+                stop();
+                try {
+                    closed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            Runtime.getRuntime().addShutdownHook(hook);
+            try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+                server.bind(UnixDomainSocketAddress.of(socketPath));
+                listening = server;
+                System.out.println("Serving on " + socketPath);
+                while (!stopping) {
+                    SocketChannel conn;
+                    try {
+                        conn = server.accept();
+                    } catch (ClosedChannelException e) {
+                        break;   // stop() closed the listener
                     }
+                    connections.add(conn);
+                    workers.execute(() -> serveConnection(conn));
+                }
+            } finally {
+                stop();
+                workers.shutdown();
+                try {
+                    workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
-                Node nextChild = readNode(x.children[childIndex]);
-                insertNonFull(nextChild, key, value);
+                Files.deleteIfExists(socketPath);
             }
         }
 
-        private boolean isLeaf(Node n) {
-            for (int i = 0; i < MAX_CHILDREN; i++) {
-                if (n.children[i] != NO_BLOCK) return false;
-            }
-            return true;
+        // the caller closes the tree and then calls this, so a signal's hook
+        // lets the JVM exit only after the final commit
+        void closed() {
+            closed.countDown();
         }
 
-        // print inorder traversal
-        void printAll() throws IOException {
-            if (rootBlockId == NO_BLOCK) return;
-            try (PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out))) {
-                traverseAndOutput(rootBlockId, out);
-                out.flush();
+        // stop accepting and cut the open connections; a request already being
+        // handled finishes first (its reply write then fails)
+        private void stop() {
+            stopping = true;
+            try {
+                ServerSocketChannel s = listening;
+                if (s != null) s.close();
+                for (SocketChannel c : connections) c.close();
+            } catch (IOException e) {
+                System.err.println("Error: closing server: " + e.getMessage());
             }
         }
 
-        private void traverseAndOutput(long blockId, PrintWriter out) throws IOException {
-            Node n = readNode(blockId);
-            for (int i = 0; i < n.numKeys; i++) {
-                long leftChild = n.children[i];
-                if (leftChild != NO_BLOCK) traverseAndOutput(leftChild, out);
-                out.println(Long.toUnsignedString(n.keys[i]) + "," + Long.toUnsignedString(n.values[i]));
+        private void serveConnection(SocketChannel conn) {
+            try (conn) {
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(Channels.newInputStream(conn), StandardCharsets.US_ASCII));
+                BufferedWriter out = new BufferedWriter(
+                        new OutputStreamWriter(Channels.newOutputStream(conn), StandardCharsets.US_ASCII));
+                if (handle(in, out, true)) stop();
+            } catch (IOException e) {
+                if (!stopping) System.err.println("Connection error: " + e.getMessage());
+            } finally {
+                connections.remove(conn);
             }
-            long right = n.children[n.numKeys];
-            if (right != NO_BLOCK) traverseAndOutput(right, out);
         }
 
-        void extractCsv(String outFilename) throws IOException {
-            Path p = Paths.get(outFilename);
-            if (Files.exists(p)) {
-                System.err.println("Error: output file already exists");
-                System.exit(1);
-            }
-            try (BufferedWriter bw = Files.newBufferedWriter(p);
-                 PrintWriter pw = new PrintWriter(bw)) {
-                if (rootBlockId != NO_BLOCK) traverseAndWriteCsv(rootBlockId, pw);
+        // answer requests until EOF or quit; returns true on a shutdown request
+        private boolean handle(BufferedReader in, BufferedWriter out, boolean socket) throws IOException {
+            boolean uncommitted = false;
+            boolean shutdown = false;
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                String[] parts = line.split("\\s+");
+                String op = parts[0].toLowerCase();
+                if (op.equals("quit")) break;
+                try {
+                    switch (op) {
+                        case "insert":
+                            requireArgs(parts, 3, 3, "insert key value");
+                            bt.insert(parseUnsignedLong(parts[1]), parseUnsignedLong(parts[2]));
+                            uncommitted = true;
+                            out.write("OK\n");
+                            break;
+                        case "search":
+                            requireArgs(parts, 2, 2, "search key");
+                            long key = parseUnsignedLong(parts[1]);
+                            long[] found = new long[1];
+                            if (bt.lookup(key, found)) {
+                                out.write(Long.toUnsignedString(key) + "," + Long.toUnsignedString(found[0]) + "\n");
+                            } else {
+                                out.write("NOTFOUND\n");
+                            }
+                            break;
+                        case "range":
+                            requireArgs(parts, 3, 4, "range lo hi [limit]");
+                            long lo = parseUnsignedLong(parts[1]);
+                            long hi = parseUnsignedLong(parts[2]);
+                            long limit = parts.length == 4 ? Long.parseLong(parts[3]) : Long.MAX_VALUE;
+                            BTree.Cursor c = bt.cursor(lo, hi);
+                            for (long n = 0; n < limit && c.next(); n++) {
+                                out.write(Long.toUnsignedString(c.key()) + "," + Long.toUnsignedString(c.value()) + "\n");
+                            }
+                            out.write("END\n");
+                            break;
+                        case "commit":
+                            bt.commit();
+                            uncommitted = false;
+                            out.write("OK\n");
+                            break;
+                        case "shutdown":
+                            if (!socket) throw new IllegalArgumentException("shutdown needs --socket");
+                            shutdown = true;
+                            out.write("OK\n");
+                            break;
+                        default:
+                            throw new IllegalArgumentException("unknown request: " + op);
+                    }
+                } catch (IllegalArgumentException e) {
+                    out.write("ERR " + e.getMessage() + "\n");
+                }
+                if (shutdown) break;
+                if (!in.ready()) {
+                    // input drained: make the batch durable, then reply
+                    if (uncommitted && bt.options.sync != SyncMode.NONE) bt.commit();
+                    uncommitted = false;
+                    out.flush();
+                }
             }
+            if (uncommitted && bt.options.sync != SyncMode.NONE) bt.commit();
+            out.flush();
+            return shutdown;
         }
 
-        private void traverseAndWriteCsv(long blockId, PrintWriter pw) throws IOException {
-            Node n = readNode(blockId);
-            for (int i = 0; i < n.numKeys; i++) {
-                long lc = n.children[i];
-                if (lc != NO_BLOCK) traverseAndWriteCsv(lc, pw);
-                pw.println(Long.toUnsignedString(n.keys[i]) + "," + Long.toUnsignedString(n.values[i]));
-            }
-            long right = n.children[n.numKeys];
-            if (right != NO_BLOCK) traverseAndWriteCsv(right, pw);
+        private static void requireArgs(String[] parts, int min, int max, String form) {
+            if (parts.length < min || parts.length > max) throw new IllegalArgumentException("expected: " + form);
         }
+    }
 
-        // Closeable: flush cache then channel
-        @Override
-        public void close() throws IOException {
-            // flush cached nodes
-            cache.flushAll();
-            // write header (in case root/next changed)
-            writeHeader();
-            chan.close();
+    // --server=path: send one insert/search/range to a running serve --socket
+    // and print its reply the way the command itself would
+    private static void sendToServer(String socket, String request) throws IOException {
+        try (SocketChannel ch = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            Writer w = new OutputStreamWriter(Channels.newOutputStream(ch), StandardCharsets.US_ASCII);
+            w.write(request + "\nquit\n");
+            w.flush();
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(Channels.newInputStream(ch), StandardCharsets.US_ASCII));
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.equals("OK") || line.equals("END")) continue;
+                if (line.equals("NOTFOUND") || line.startsWith("ERR ")) {
+                    out.flush();
+                    System.err.println("Error: " + (line.equals("NOTFOUND") ? "key not found" : line.substring(4)));
+                    System.exit(1);
+                }
+                out.println(line);
+            }
+            out.flush();
+        }
+    }
+
+    // In-memory write buffer (--memtable): pending inserts in arrival order,
+    // with a hash index from key to its latest entry for lookups (of duplicate
+    // keys, a search answers with the newest, here as in the tree). It is merged
+    // into the tree in key order once full, so inserts bound for the same leaf
+    // follow each other and share one pool page (and one write at commit).
+    static class WriteBuffer {
+        final PairList pairs = new PairList();
+        private final LongIntMap latest;
+        private int zeroAt = -1;   // LongIntMap reserves key 0 as its empty slot
+
+        WriteBuffer(int capacity) {
+            latest = new LongIntMap(capacity);
+        }
+
+        int size() { return pairs.size(); }
+
+        void add(long key, long value) {
+            if (key == 0) zeroAt = pairs.size();
+            else latest.put(key, pairs.size());
+            pairs.add(key, value);
+        }
+
+        boolean get(long key, long[] out) {
+            int i = key == 0 ? zeroAt : latest.get(key);
+            if (i < 0) return false;
+            out[0] = pairs.values[i];
+            return true;
+        }
+
+        // the pairs sorted by key (stable, so duplicates keep arrival order);
+        // the buffer itself is left as is for lookups during the merge
+        PairList sorted() {
+            PairList s = pairs.copy();
+            s.sortUnsigned();
+            return s;
+        }
+    }
+
+    // Write-ahead log for the write buffer: <index>.wal.<generation>, a 16-byte
+    // header (WAL_MAGIC, generation) followed by 16-byte key/value records.
+    // Each buffer fill gets the next generation; once a buffer is merged and
+    // committed, the index header records its generation and the log is
+    // deleted. On open, logs newer than that are replayed (a torn last record
+    // is ignored). Records are forced per --sync: every insert, at each
+    // commit, or never.
+    static class WriteAheadLog {
+        private final Path path;
+        final long generation;
+        private final FileChannel ch;
+        private final ByteBuffer pending = ByteBuffer.allocate(WAL_BUFFER_BYTES);
+        private final SyncMode sync;
+        private final LongAdder forces;
+
+        WriteAheadLog(Path index, long generation, SyncMode sync, LongAdder forces) throws IOException {
+            this.path = logPath(index, generation);
+            this.generation = generation;
+            this.sync = sync;
+            this.forces = forces;
+            this.ch = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            pending.put(WAL_MAGIC).putLong(generation);
+        }
+
+        static Path logPath(Path index, long generation) {
+            return index.resolveSibling(index.getFileName() + ".wal." + generation);
+        }
+
+        // generations of the logs next to index, oldest first
+        static long[] generations(Path index) throws IOException {
+            String prefix = index.getFileName() + ".wal.";
+            Path dir = index.toAbsolutePath().getParent();
+            List<Long> found = new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, prefix + "*")) {
+                for (Path p : ds) {
+                    String g = p.getFileName().toString().substring(prefix.length());
+                    if (!g.isEmpty() && g.chars().allMatch(Character::isDigit)) found.add(Long.parseLong(g));
+                }
+            }
+            long[] gens = new long[found.size()];
+            for (int i = 0; i < gens.length; i++) gens[i] = found.get(i);
+            Arrays.sort(gens);
+            return gens;
+        }
+
+        // feed every complete record of a log to sink; returns the record count
+        static long replay(Path log, PairSink sink) throws IOException {
+            long n = 0;
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(log), WAL_BUFFER_BYTES)) {
+                DataInputStream data = new DataInputStream(in);
+                byte[] magic = new byte[WAL_MAGIC.length];
+                try {
+                    data.readFully(magic);
+                    data.readLong();
+                } catch (EOFException e) {
+                    return 0;   // crashed while starting the log
+                }
+                if (!Arrays.equals(magic, WAL_MAGIC)) throw new IOException("Not a write-ahead log: " + log);
+                while (true) {
+                    long key, value;
+                    try {
+                        key = data.readLong();
+                        value = data.readLong();
+                    } catch (EOFException e) {
+                        return n;
+                    }
+                    sink.accept(key, value);
+                    n++;
+                }
+            }
+        }
+
+        void append(long key, long value) throws IOException {
+            if (pending.remaining() < 16) writeOut();
+            pending.putLong(key).putLong(value);
+            if (sync == SyncMode.ALWAYS) sync();
+        }
+
+        // write out the buffered records and force them unless --sync=none
+        void sync() throws IOException {
+            writeOut();
+            if (sync != SyncMode.NONE) {
+                ch.force(false);
+                forces.increment();
+            }
+        }
+
+        private void writeOut() throws IOException {
+            pending.flip();
+            while (pending.hasRemaining()) ch.write(pending);
+            pending.clear();
+        }
+
+        void close() throws IOException {
+            writeOut();
+            ch.close();
+        }
+
+        void delete() throws IOException {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    // Bloom filter over every key of an index, kept next to it in <index>.bloom
+    // so most lookups for absent keys are answered without reading a page.
+    // Keys are added before they reach the write buffer or the tree, so the
+    // filter holds a superset of the index's keys as long as every writer keeps
+    // it up to date. The file records whether that is known to hold: the first
+    // add after opening marks it in use (forced before any index block can
+    // change), and save() writes back the changed chunks and clears the mark.
+    // A file found still marked was left by a crash and may lack keys, so it
+    // is ignored until rebuilt with the bloom command.
+    //
+    // File: magic "4348BLM1" (8), state (4: 1 clean, 0 in use), hash count (4),
+    // log2 of the bit count (4), unused (4), then the bits as big-endian longs.
+    static class BloomFilter {
+        private static final int HEADER_BYTES = 24;
+        private static final int CLEAN = 1;
+        private static final int IN_USE = 0;
+        final Path path;
+        final int hashes;
+        final int logBits;
+        private final AtomicLongArray words;
+        private final AtomicLongArray dirtyChunks;   // one bit per BLOOM_CHUNK_WORDS words
+        private final SyncMode sync;
+        private final LongAdder forces;
+        private boolean onDisk;   // the file has this filter's geometry
+        private volatile boolean inUse;   // changed since the file was last clean
+
+        // an empty filter sized for keys; it replaces the file on save()
+        BloomFilter(Path path, long keys, int bitsPerKey, SyncMode sync, LongAdder forces) {
+            this(path, sync, forces, Math.max(1, (int) Math.round(bitsPerKey * Math.log(2))),
+                    Math.max(12, Math.min(BLOOM_MAX_LOG_BITS,
+                            64 - Long.numberOfLeadingZeros(Math.max(keys, BLOOM_MIN_KEYS) * BLOOM_HEADROOM * bitsPerKey - 1))));
+            inUse = true;
+        }
+
+        private BloomFilter(Path path, SyncMode sync, LongAdder forces, int hashes, int logBits) {
+            this.path = path;
+            this.hashes = hashes;
+            this.logBits = logBits;
+            this.sync = sync;
+            this.forces = forces;
+            int n = 1 << (logBits - 6);
+            this.words = new AtomicLongArray(n);
+            this.dirtyChunks = new AtomicLongArray(((n + BLOOM_CHUNK_WORDS - 1) / BLOOM_CHUNK_WORDS + 63) / 64);
+        }
+
+        static Path filterPath(Path index) {
+            return index.resolveSibling(index.getFileName() + ".bloom");
+        }
+
+        // the filter in path, or null (with a note) if a crash left it in use
+        static BloomFilter open(Path path, SyncMode sync, LongAdder forces) throws IOException {
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer head = ByteBuffer.allocate(HEADER_BYTES);
+                readFully(ch, head, 0);
+                head.flip();
+                byte[] magic = new byte[BLOOM_MAGIC.length];
+                head.get(magic);
+                int state = head.getInt();
+                int hashes = head.getInt();
+                int logBits = head.getInt();
+                if (!Arrays.equals(magic, BLOOM_MAGIC) || hashes < 1 || logBits < 12 || logBits > BLOOM_MAX_LOG_BITS
+                        || ch.size() != HEADER_BYTES + (1L << (logBits - 3))) {
+                    throw new IOException("Not a valid Bloom filter file: " + path);
+                }
+                if (state != CLEAN) {
+                    System.err.println("Ignoring Bloom filter " + path + ": it was not closed cleanly"
+                            + " (rebuild it with the bloom command)");
+                    return null;
+                }
+                BloomFilter f = new BloomFilter(path, sync, forces, hashes, logBits);
+                ByteBuffer buf = ByteBuffer.allocate(BLOOM_CHUNK_WORDS * 8);
+                for (int w = 0; w < f.words.length(); ) {
+                    buf.clear();
+                    readFully(ch, buf, HEADER_BYTES + 8L * w);
+                    buf.flip();
+                    while (buf.hasRemaining()) f.words.set(w++, buf.getLong());
+                }
+                f.onDisk = true;
+                return f;
+            }
+        }
+
+        // two hashes of the mixed key; probe i looks at bit h1 + i * h2 (top bits)
+        boolean mightContain(long key) {
+            long h = mix(key);
+            long step = Long.rotateLeft(h, 32) | 1;
+            int shift = 64 - logBits;
+            for (int i = 0; i < hashes; i++, h += step) {
+                long bit = h >>> shift;
+                if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) return false;
+            }
+            return true;
+        }
+
+        void add(long key) throws IOException {
+            if (!inUse) markInUse();
+            long h = mix(key);
+            long step = Long.rotateLeft(h, 32) | 1;
+            int shift = 64 - logBits;
+            for (int i = 0; i < hashes; i++, h += step) {
+                long bit = h >>> shift;
+                int w = (int) (bit >>> 6);
+                long m = 1L << bit;
+                if ((words.get(w) & m) == 0 && (words.getAndAccumulate(w, m, BloomFilter::or) & m) == 0) {
+                    int c = w / BLOOM_CHUNK_WORDS;
+                    if ((dirtyChunks.get(c >>> 6) & (1L << c)) == 0) dirtyChunks.accumulateAndGet(c >>> 6, 1L << c, BloomFilter::or);
+                }
+            }
+        }
+
+        private static long or(long a, long b) {
+            return a | b;
+        }
+
+        // SplitMix64 finalizer: sequential keys land on unrelated bits
+        private static long mix(long k) {
+            k = (k ^ (k >>> 30)) * 0xBF58476D1CE4E5B9L;
+            k = (k ^ (k >>> 27)) * 0x94D049BB133111EBL;
+            return k ^ (k >>> 31);
+        }
+
+        private synchronized void markInUse() throws IOException {
+            if (inUse) return;
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                writeState(ch, IN_USE);
+                force(ch);
+            }
+            inUse = true;
+        }
+
+        // Make the file match the filter and mark it clean. The changed chunks
+        // are forced before the mark is cleared (a lost mark only means the
+        // filter is ignored); a filter of a new size replaces the file whole.
+        synchronized void save() throws IOException {
+            if (!inUse) return;
+            if (!onDisk) {
+                Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+                try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ByteBuffer head = ByteBuffer.allocate(HEADER_BYTES);
+                    head.put(BLOOM_MAGIC).putInt(CLEAN).putInt(hashes).putInt(logBits).putInt(0);
+                    head.flip();
+                    writeFully(ch, head, 0);
+                    writeChunks(ch, false);
+                    force(ch);
+                }
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                onDisk = true;
+            } else {
+                try (FileChannel ch = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    writeChunks(ch, true);
+                    force(ch);
+                    writeState(ch, CLEAN);
+                }
+            }
+            for (int i = 0; i < dirtyChunks.length(); i++) dirtyChunks.set(i, 0);
+            inUse = false;
+        }
+
+        private void writeChunks(FileChannel ch, boolean dirtyOnly) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(BLOOM_CHUNK_WORDS * 8);
+            for (int from = 0; from < words.length(); from += BLOOM_CHUNK_WORDS) {
+                int c = from / BLOOM_CHUNK_WORDS;
+                if (dirtyOnly && (dirtyChunks.get(c >>> 6) & (1L << c)) == 0) continue;
+                buf.clear();
+                for (int w = from; w < Math.min(words.length(), from + BLOOM_CHUNK_WORDS); w++) buf.putLong(words.get(w));
+                buf.flip();
+                writeFully(ch, buf, HEADER_BYTES + 8L * from);
+            }
+        }
+
+        private void writeState(FileChannel ch, int state) throws IOException {
+            ByteBuffer b = ByteBuffer.allocate(4).putInt(state);
+            b.flip();
+            writeFully(ch, b, BLOOM_MAGIC.length);
+        }
+
+        private void force(FileChannel ch) throws IOException {
+            if (sync == SyncMode.NONE) return;
+            ch.force(false);
+            forces.increment();
+        }
+
+        private static void readFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+            while (buf.hasRemaining()) {
+                int n = ch.read(buf, pos);
+                if (n < 0) throw new EOFException("Bloom filter file is truncated");
+                pos += n;
+            }
+        }
+
+        private static void writeFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+            while (buf.hasRemaining()) pos += ch.write(buf, pos);
+        }
+
+        // fraction of bits set; the false positive rate is about fill^hashes
+        double fill() {
+            long set = 0;
+            for (int i = 0; i < words.length(); i++) set += Long.bitCount(words.get(i));
+            return (double) set / (1L << logBits);
+        }
+
+        // distinct keys added, estimated from the fill
+        long estimatedKeys(double fill) {
+            return (long) (-(double) (1L << logBits) / hashes * Math.log(1 - Math.min(fill, 0.999999)));
+        }
+    }
+
+    // An index split over several ordinary index files (see the header comment
+    // for the manifest). Each key lives in exactly one shard, so inserts and
+    // lookups go to one BTree, and the shards are loaded and read in parallel.
+    static class ShardedIndex implements Closeable {
+        private static final int HASH = 0;
+        private static final int RANGE = 1;
+        private final BTree[] shards;
+        private final Path[] paths;
+        private final int partitioning;
+        private final long[] splits;   // RANGE: first key of shards 1..N-1
+        private final BTree.Options options;
+
+        static Path shardPath(Path manifest, int i) {
+            return manifest.resolveSibling(manifest.getFileName() + ".shard" + i);
+        }
+
+        // whether path is a shard manifest (rather than an index file)
+        static boolean isManifest(Path path) throws IOException {
+            if (!Files.isRegularFile(path) || Files.size(path) < SHARD_MAGIC.length) return false;
+            try (InputStream in = Files.newInputStream(path)) {
+                return Arrays.equals(in.readNBytes(SHARD_MAGIC.length), SHARD_MAGIC);
+            }
+        }
+
+        // Create the shard files (with the create options each index would
+        // take), then the manifest naming them.
+        static void create(String filename, BTree.Options options) throws IOException {
+            int n = options.shards;
+            if (n < 2 || n > MAX_SHARDS) {
+                throw new IllegalArgumentException("shard count must be from 2 to " + MAX_SHARDS);
+            }
+            int partitioning;
+            long[] splits;
+            switch (options.partition.toLowerCase()) {
+                case "hash":
+                    if (options.splitKeys != null) throw new IllegalArgumentException("--split-keys needs --partition=range");
+                    partitioning = HASH;
+                    splits = new long[0];
+                    break;
+                case "range":
+                    partitioning = RANGE;
+                    splits = options.splitKeys == null ? evenSplits(n) : parseSplits(options.splitKeys, n);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown partitioning: " + options.partition);
+            }
+            Path p = Paths.get(filename);
+            if (Files.exists(p)) {
+                System.err.println("Error: file already exists");
+                System.exit(1);
+            }
+            for (int i = 0; i < n; i++) {
+                if (Files.exists(shardPath(p, i))) {
+                    System.err.println("Error: shard file already exists: " + shardPath(p, i));
+                    System.exit(1);
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                String shard = shardPath(p, i).toString();
+                Project3.create(shard, options.pageSize, options.degree, options.formatFlags());
+                if (options.bloom) createBloom(shard, options);
+            }
+            ByteBuffer buf = ByteBuffer.allocate(20 + 8 * splits.length);
+            buf.put(SHARD_MAGIC).putInt(SHARD_MANIFEST_VERSION).putInt(n).putInt(partitioning);
+            for (long k : splits) buf.putLong(k);
+            buf.flip();
+            try (FileChannel ch = FileChannel.open(p, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                while (buf.hasRemaining()) ch.write(buf);
+                if (options.sync != SyncMode.NONE) ch.force(true);
+            }
+            System.out.println("Created sharded index: " + filename + " (" + n + " shards, "
+                    + (partitioning == HASH ? "hash" : "range") + " partitioning)");
+        }
+
+        // Compact every shard on its own, in place or into the shards of a new
+        // manifest (a copy of this one, written last).
+        static void compact(String filename, String dst, BTree.Options options, double fill) throws IOException {
+            Path p = Paths.get(filename);
+            int n;
+            try (ShardedIndex index = new ShardedIndex(filename, options)) {
+                n = index.shards.length;
+            }
+            Path out = dst != null ? Paths.get(dst) : null;
+            if (out != null) {
+                for (int i = -1; i < n; i++) {
+                    Path f = i < 0 ? out : shardPath(out, i);
+                    if (Files.exists(f)) {
+                        System.err.println("Error: file already exists: " + f);
+                        System.exit(1);
+                    }
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                Project3.compact(shardPath(p, i).toString(), out != null ? shardPath(out, i).toString() : null, options, fill);
+            }
+            if (out != null) Files.copy(p, out);
+        }
+
+        // n equal slices of the unsigned key space
+        private static long[] evenSplits(int n) {
+            long[] splits = new long[n - 1];
+            long step = Long.divideUnsigned(-1L, n) + 1;
+            for (int i = 1; i < n; i++) splits[i - 1] = step * i;
+            return splits;
+        }
+
+        private static long[] parseSplits(String s, int n) {
+            String[] parts = s.split(",");
+            if (parts.length != n - 1) {
+                throw new IllegalArgumentException(n + " shards need " + (n - 1) + " split keys");
+            }
+            long[] splits = new long[n - 1];
+            for (int i = 0; i < splits.length; i++) {
+                splits[i] = parseUnsignedLong(parts[i].trim());
+                if (i > 0 && Long.compareUnsigned(splits[i - 1], splits[i]) >= 0) {
+                    throw new IllegalArgumentException("split keys must be ascending");
+                }
+            }
+            return splits;
+        }
+
+        ShardedIndex(String filename, BTree.Options options) throws IOException {
+            this.options = options;
+            Path p = Paths.get(filename);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(p)))) {
+                byte[] magic = new byte[SHARD_MAGIC.length];
+                in.readFully(magic);
+                int version = in.readInt();
+                int n = in.readInt();
+                partitioning = in.readInt();
+                if (!Arrays.equals(magic, SHARD_MAGIC) || version != SHARD_MANIFEST_VERSION || n < 2 || n > MAX_SHARDS
+                        || (partitioning != HASH && partitioning != RANGE)) {
+                    throw new IOException("Not a valid shard manifest: " + filename);
+                }
+                splits = new long[partitioning == RANGE ? n - 1 : 0];
+                for (int i = 0; i < splits.length; i++) splits[i] = in.readLong();
+                shards = new BTree[n];
+                paths = new Path[n];
+            } catch (EOFException e) {
+                throw new IOException("Not a valid shard manifest (truncated): " + filename);
+            }
+            try {
+                for (int i = 0; i < shards.length; i++) {
+                    paths[i] = shardPath(p, i);
+                    shards[i] = new BTree(paths[i].toString(), false, options);
+                }
+            } catch (IOException | RuntimeException e) {
+                for (BTree bt : shards) {
+                    if (bt != null) bt.close();
+                }
+                throw e;
+            }
+        }
+
+        // Fibonacci hashing on the top bits, so dense or strided ids spread evenly
+        int shardOf(long key) {
+            if (partitioning == RANGE) return BTree.upperBound(splits, splits.length, key);
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (((h >>> 32) * shards.length) >>> 32);
+        }
+
+        void insert(long key, long value) throws IOException {
+            shards[shardOf(key)].insert(key, value);
+        }
+
+        boolean lookup(long key, long[] out) throws IOException {
+            return shards[shardOf(key)].lookup(key, out);
+        }
+
+        // each shard resolves its own probes (still in order) on its own thread
+        int lookupSorted(long[] keys, int n, long[] values, boolean[] found) throws IOException {
+            int[] counts = new int[shards.length];
+            int[] shardOfProbe = new int[n];
+            for (int i = 0; i < n; i++) counts[shardOfProbe[i] = shardOf(keys[i])]++;
+            long[][] shardKeys = new long[shards.length][];
+            long[][] shardValues = new long[shards.length][];
+            boolean[][] shardFound = new boolean[shards.length][];
+            for (int s = 0; s < shards.length; s++) {
+                shardKeys[s] = new long[counts[s]];
+                shardValues[s] = new long[counts[s]];
+                shardFound[s] = new boolean[counts[s]];
+            }
+            int[] at = new int[shards.length];
+            for (int i = 0; i < n; i++) shardKeys[shardOfProbe[i]][at[shardOfProbe[i]]++] = keys[i];
+            int[] hits = new int[shards.length];
+            forEachShard(s -> hits[s] = shards[s].lookupSorted(shardKeys[s], counts[s], shardValues[s], shardFound[s]));
+            Arrays.fill(at, 0);
+            for (int i = 0; i < n; i++) {
+                int s = shardOfProbe[i];
+                values[i] = shardValues[s][at[s]];
+                found[i] = shardFound[s][at[s]++];
+            }
+            int total = 0;
+            for (int h : hits) total += h;
+            return total;
+        }
+
+        // Row-by-row load with one inserting thread per shard: this thread
+        // routes the parsed rows to them in batches through small bounded
+        // queues. A shard whose insert fails drops its remaining rows, so the
+        // others are never left waiting; every shard finishes before the
+        // first failure (of the parse or of a shard) is rethrown.
+        void loadCsv(String csvIn) throws IOException {
+            int n = shards.length;
+            List<BlockingQueue<CsvReader.Batch>> full = new ArrayList<>();
+            List<BlockingQueue<CsvReader.Batch>> free = new ArrayList<>();
+            for (int s = 0; s < n; s++) {
+                full.add(new ArrayBlockingQueue<>(CSV_QUEUE_BATCHES));
+                free.add(new ArrayBlockingQueue<>(CSV_QUEUE_BATCHES + 1));
+                for (int i = 0; i < CSV_QUEUE_BATCHES + 1; i++) free.get(s).add(new CsvReader.Batch());
+            }
+            ExecutorService workers = Executors.newFixedThreadPool(n);
+            List<Future<?>> done = new ArrayList<>();
+            try {
+                for (int s = 0; s < n; s++) {
+                    BTree bt = shards[s];
+                    BlockingQueue<CsvReader.Batch> in = full.get(s), out = free.get(s);
+                    done.add(workers.submit(() -> {
+                        loadShard(bt, in, out);
+                        return null;
+                    }));
+                }
+                CsvReader.Batch[] filling = new CsvReader.Batch[n];
+                IOException failure = null;
+                try {
+                    forEachLoadPair(csvIn, paths[0], options, (key, value) -> {
+                        int s = shardOf(key);
+                        CsvReader.Batch b = filling[s];
+                        if (b == null) b = filling[s] = take(free.get(s));
+                        b.keys[b.size] = key;
+                        b.values[b.size] = value;
+                        if (++b.size == CSV_BATCH_PAIRS) {
+                            put(full.get(s), b);
+                            filling[s] = null;
+                        }
+                    });
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    // what is left, marked as each shard's last batch
+                    for (int s = 0; s < n; s++) {
+                        CsvReader.Batch b = filling[s] != null ? filling[s] : take(free.get(s));
+                        b.last = true;
+                        put(full.get(s), b);
+                    }
+                    for (Future<?> f : done) {
+                        IOException e = await(f, "load");
+                        if (failure == null) failure = e;
+                    }
+                }
+                if (failure != null) throw failure;
+            } finally {
+                workers.shutdownNow();
+            }
+        }
+
+        private static void loadShard(BTree bt, BlockingQueue<CsvReader.Batch> full,
+                                      BlockingQueue<CsvReader.Batch> free) throws Exception {
+            Throwable failed = null;
+            int pending = 0;
+            while (true) {
+                CsvReader.Batch b = full.take();
+                if (failed == null) {
+                    try {
+                        for (int i = 0; i < b.size; i++) {
+                            bt.insert(b.keys[i], b.values[i]);
+                            if (++pending == LOAD_COMMIT_ROWS) {
+                                bt.commit();
+                                pending = 0;
+                            }
+                        }
+                    } catch (IOException | RuntimeException | Error e) {
+                        failed = e;
+                    }
+                }
+                boolean last = b.last;
+                b.size = 0;
+                b.last = false;
+                free.put(b);
+                if (last) break;
+            }
+            if (failed instanceof Error) throw (Error) failed;
+            if (failed != null) throw (Exception) failed;
+        }
+
+        // --bulk: the rows are split by shard, then every shard sorts its
+        // part and builds its tree bottom-up on its own thread
+        void bulkLoadCsv(String csvIn, double fill) throws IOException {
+            for (BTree bt : shards) {
+                if (!bt.isEmpty()) {
+                    System.err.println("Error: --bulk requires an empty index");
+                    System.exit(1);
+                }
+            }
+            PairList[] parts = new PairList[shards.length];
+            for (int s = 0; s < parts.length; s++) parts[s] = new PairList();
+            forEachCsvPair(csvIn, (key, value) -> parts[shardOf(key)].add(key, value));
+            forEachShard(s -> {
+                if (!parts[s].isSortedUnsigned()) parts[s].sortUnsigned();
+                shards[s].bulkLoad(parts[s], fill);
+            });
+        }
+
+        // keys in [lowKey, highKey] of every shard that may hold some, merged
+        PairCursor cursor(long lowKey, long highKey) throws IOException {
+            int first = 0, last = shards.length - 1;
+            if (partitioning == RANGE) {
+                first = shardOf(lowKey);
+                last = shardOf(highKey);
+            }
+            List<PairCursor> sources = new ArrayList<>();
+            for (int s = first; s <= last; s++) sources.add(shards[s].cursor(lowKey, highKey));
+            return new MergedCursor(sources.toArray(new PairCursor[0]));
+        }
+
+        void printAll() throws IOException {
+            writeAllInOrder(Channels.newChannel(System.out));
+            System.out.flush();
+        }
+
+        void extractCsv(String outFilename) throws IOException {
+            Path p = Paths.get(outFilename);
+            if (Files.exists(p)) {
+                System.err.println("Error: output file already exists");
+                System.exit(1);
+            }
+            try (FileChannel out = FileChannel.open(p, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                writeAllInOrder(out);
+            }
+        }
+
+        // every pair as "key,value" lines in key order: each shard is read on
+        // its own thread and the streams are merged here
+        private void writeAllInOrder(WritableByteChannel out) throws IOException {
+            ShardStream[] streams = new ShardStream[shards.length];
+            try {
+                for (int s = 0; s < shards.length; s++) streams[s] = new ShardStream(shards[s], "shard-" + s);
+                PairFormatter f = new PairFormatter(out);
+                MergedCursor c = new MergedCursor(streams);
+                while (c.next()) f.append(c.key(), c.value());
+                f.flush();
+            } finally {
+                for (ShardStream stream : streams) {
+                    if (stream != null) stream.stop();
+                }
+            }
+        }
+
+        void printStats(PrintStream out) throws IOException {
+            out.println("sharded index: " + shards.length + " shards, "
+                    + (partitioning == HASH ? "hash" : "range") + " partitioning");
+            for (int s = 0; s < shards.length; s++) {
+                out.println();
+                out.print("shard " + s + ": " + paths[s]);
+                if (partitioning == RANGE) {
+                    out.print(" (keys from " + (s == 0 ? "0" : Long.toUnsignedString(splits[s - 1]))
+                            + (s == splits.length ? "" : " up to " + Long.toUnsignedString(splits[s])) + ")");
+                }
+                out.println();
+                shards[s].printTreeStats(out);
+            }
+        }
+
+        void rebuildBloom(int bitsPerKey) throws IOException {
+            long[] added = new long[shards.length];
+            forEachShard(s -> added[s] = shards[s].rebuildBloom(-1, bitsPerKey));
+            for (int s = 0; s < shards.length; s++) {
+                System.out.println("Built Bloom filter " + BloomFilter.filterPath(paths[s]) + " over " + added[s] + " keys");
+            }
+        }
+
+        // shards are closed one after another so --stats summaries don't interleave
+        @Override
+        public void close() throws IOException {
+            IOException failure = null;
+            for (int s = 0; s < shards.length; s++) {
+                if (options.stats) System.err.println("Shard " + s + ":");
+                try {
+                    shards[s].close();
+                } catch (IOException e) {
+                    if (failure == null) failure = e;
+                }
+            }
+            if (failure != null) throw failure;
+        }
+
+        interface ShardTask {
+            void run(int shard) throws IOException;
+        }
+
+        // run task for every shard, one thread each; the first failure is rethrown
+        private void forEachShard(ShardTask task) throws IOException {
+            ExecutorService workers = Executors.newFixedThreadPool(shards.length);
+            try {
+                List<Future<?>> done = new ArrayList<>();
+                for (int s = 0; s < shards.length; s++) {
+                    int shard = s;
+                    done.add(workers.submit(() -> {
+                        task.run(shard);
+                        return null;
+                    }));
+                }
+                IOException failure = null;
+                for (Future<?> f : done) {
+                    IOException e = await(f, "shard");
+                    if (failure == null) failure = e;
+                }
+                if (failure != null) throw failure;
+            } finally {
+                workers.shutdownNow();
+            }
+        }
+
+        // wait for a worker; its failure is returned, not thrown
+        private static IOException await(Future<?> f, String what) throws InterruptedIOException {
+            try {
+                f.get();
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(what + " interrupted");
+            } catch (ExecutionException e) {
+                Throwable c = e.getCause();
+                if (c instanceof IOException) return (IOException) c;
+                if (c instanceof IllegalArgumentException) throw (IllegalArgumentException) c;
+                return new IOException(what + " worker failed", c);
+            }
+        }
+
+        private static <T> T take(BlockingQueue<T> q) throws InterruptedIOException {
+            try {
+                return q.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("load interrupted");
+            }
+        }
+
+        private static <T> void put(BlockingQueue<T> q, T item) throws InterruptedIOException {
+            try {
+                q.put(item);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("load interrupted");
+            }
+        }
+
+        // A shard's pairs read ahead on their own thread and handed over in
+        // batches through a small bounded queue, like CsvReader. The reader
+        // is stopped by a flag, never interrupted: an interrupt during a
+        // block read would close the shard's file channel.
+        private static final class ShardStream implements PairCursor, Runnable {
+            private final BTree bt;
+            private final BlockingQueue<CsvReader.Batch> full = new ArrayBlockingQueue<>(CSV_QUEUE_BATCHES);
+            private final BlockingQueue<CsvReader.Batch> free = new ArrayBlockingQueue<>(CSV_QUEUE_BATCHES + 2);
+            private final Thread thread;
+            private volatile boolean stopping = false;
+            private CsvReader.Batch current;
+            private int pos;
+            private long key;
+            private long value;
+
+            ShardStream(BTree bt, String name) {
+                this.bt = bt;
+                for (int i = 0; i < CSV_QUEUE_BATCHES + 2; i++) free.add(new CsvReader.Batch());
+                this.thread = new Thread(this, name);
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            @Override
+            public void run() {
+                try {
+                    CsvReader.Batch b = free.take();
+                    try {
+                        BTree.Cursor c = bt.cursor(0, -1L);
+                        while (!stopping && (b.size = c.next(b.keys, b.values, CSV_BATCH_PAIRS)) > 0) {
+                            full.put(b);
+                            b = free.take();
+                        }
+                    } catch (IOException | RuntimeException | Error e) {
+                        b.error = e;
+                    }
+                    b.last = true;
+                    full.put(b);
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            }
+
+            public boolean next() throws IOException {
+                while (current == null || pos == current.size) {
+                    if (current != null) {
+                        if (current.error instanceof IOException) throw (IOException) current.error;
+                        if (current.error instanceof RuntimeException) throw (RuntimeException) current.error;
+                        if (current.error instanceof Error) throw (Error) current.error;
+                        if (current.last) return false;
+                        current.size = 0;
+                        free.add(current);
+                    }
+                    current = take(full);
+                    pos = 0;
+                }
+                key = current.keys[pos];
+                value = current.values[pos];
+                pos++;
+                return true;
+            }
+
+            public long key() { return key; }
+            public long value() { return value; }
+
+            // let the reader finish: it sees the flag at its next pair, and
+            // the batches it is waiting to hand over are taken off its hands
+            void stop() {
+                stopping = true;
+                while (thread.isAlive()) {
+                    CsvReader.Batch b = full.poll();
+                    if (b != null) {
+                        b.size = 0;
+                        free.offer(b);
+                    }
+                    try {
+                        thread.join(10);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    // ---------- BTree class and node cache ----------
+    static class BTree implements Closeable {
+        private final RandomAccessFile raf;
+        private final FileChannel chan;
+        // rootBlockId changes only under rootLatch's write lock; nextBlockId and
+        // headerDirty are guarded by headerLock
+        private volatile long rootBlockId;
+        // page geometry from the header, fixed for the life of the file
+        private int formatVersion;
+        private int blockSize;
+        private int degree;
+        private int maxKeys;
+        private int formatFlags;
+        private boolean compressed;
+        private boolean bplus;   // B+tree: pairs only in chained leaves
+        private long nextBlockId;
+        private long walApplied;   // header: newest log generation merged into the tree
+        private long walMerged;    // header: pairs of the next generation, in key order, merged so far
+        private boolean headerDirty = false;
+        private volatile boolean unsynced = false;   // written since the last force
+        private final ReentrantReadWriteLock rootLatch = new ReentrantReadWriteLock();
+        private final Object headerLock = new Object();
+        // bumped by every split; lets cursors and batched lookups detect stale paths
+        private final AtomicLong structureVersion = new AtomicLong();
+        // {blockId, structureVersion} of the rightmost leaf as last seen by an
+        // insert; valid while no split has happened since
+        private volatile long[] appendLeaf;
+        // --memtable: inserts go to writeBuffer and wal under bufferLock; a full
+        // buffer becomes mergingBuffer (still searched) while mergeLock's holder
+        // moves it into the tree
+        private final Path indexPath;
+        private final Object bufferLock = new Object();
+        private final ReentrantLock mergeLock = new ReentrantLock();
+        // held for each merged pair and by commit, so a committed header
+        // counts exactly the merged pairs its pages hold
+        private final Object mergeStepLock = new Object();
+        private WriteBuffer writeBuffer;
+        private volatile WriteBuffer mergingBuffer;
+        private WriteAheadLog wal;
+        // <index>.bloom if present (and closed cleanly): checked before any page read
+        private volatile BloomFilter bloom;
+        private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];   // --mmap only
+        private volatile long mappedBytes = 0;
+        // per-thread scratch so block reads, writes and mapped lookups don't allocate
+        private final ThreadLocal<ByteBuffer> blockBuffer =
+                ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(blockSize));
+        private final ThreadLocal<ByteBuffer> batchBuffer =
+                ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(WRITE_BATCH_BLOCKS * blockSize));
+        private final ThreadLocal<Node[]> batchNodes =
+                ThreadLocal.withInitial(() -> new Node[WRITE_BATCH_BLOCKS]);
+        private final ThreadLocal<NodeView> nodeView = ThreadLocal.withInitial(() -> new NodeView(maxKeys));
+        private final BufferPool pool;
+        final Metrics metrics;
+        private ObjectName mbean;
+        private final Options options;
+        // --prefetch: I/O threads that read pages into the pool ahead of scans,
+        // started on first use; prefetching holds the blocks queued or in flight
+        private final int prefetchPages;
+        private volatile ThreadPoolExecutor prefetcher;
+        private final Set<Long> prefetching = ConcurrentHashMap.newKeySet();
+
+        // Per-open settings, normally taken from command-line flags.
+        static class Options {
+            SyncMode sync = SyncMode.COMMIT;
+            int cachePages = DEFAULT_CACHE_PAGES;
+            long cacheBytes = 0;   // KB/MB/GB sizes; turned into pages once the block size is known
+            boolean mmap = false;
+            int threads = Runtime.getRuntime().availableProcessors();
+            boolean stats = false;   // latency histograms, JMX, summary on close
+            int memtable = 0;   // inserts buffered (and logged) before a merge; 0: off
+            int bloomBits = BLOOM_BITS_PER_KEY;   // when a Bloom filter is (re)built
+            int prefetch = PREFETCH_PAGES;   // pages read ahead of scans; 0: off
+            boolean sort = false;   // load: external sort of the rows first
+            long sortMemory = 0;   // load --sort: run buffer budget; 0: a quarter of the heap
+            // create only
+            int pageSize = DEFAULT_BLOCK_SIZE;
+            int degree = 0;   // largest that fits
+            boolean compress = false;
+            boolean bplus = false;
+            boolean bloom = false;
+            int shards = 0;   // 0: a single index file
+            String partition = "hash";
+            String splitKeys = null;   // --partition=range: comma-separated
+
+            static Options fromFlags(Map<String, String> flags) {
+                Options o = new Options();
+                if (flags.containsKey("sync")) o.sync = SyncMode.parse(flags.get("sync"));
+                if (flags.containsKey("cache")) parseCache(flags.get("cache"), o);
+                if (flags.containsKey("mmap")) o.mmap = Boolean.parseBoolean(flags.get("mmap"));
+                if (flags.containsKey("threads")) o.threads = Math.max(1, Integer.parseInt(flags.get("threads")));
+                if (flags.containsKey("page-size")) o.pageSize = (int) parseSize(flags.get("page-size"));
+                if (flags.containsKey("degree")) o.degree = Integer.parseInt(flags.get("degree"));
+                if (flags.containsKey("memtable")) o.memtable = Math.max(0, Integer.parseInt(flags.get("memtable")));
+                if (flags.containsKey("stats")) o.stats = Boolean.parseBoolean(flags.get("stats"));
+                if (flags.containsKey("compress")) o.compress = Boolean.parseBoolean(flags.get("compress"));
+                if (flags.containsKey("bplus")) o.bplus = Boolean.parseBoolean(flags.get("bplus"));
+                if (flags.containsKey("bloom")) o.bloom = Boolean.parseBoolean(flags.get("bloom"));
+                if (flags.containsKey("shards")) o.shards = Integer.parseInt(flags.get("shards"));
+                if (flags.containsKey("partition")) o.partition = flags.get("partition");
+                if (flags.containsKey("split-keys")) o.splitKeys = flags.get("split-keys");
+                if (flags.containsKey("bloom-bits")) o.bloomBits = Math.max(1, Integer.parseInt(flags.get("bloom-bits")));
+                if (flags.containsKey("prefetch")) o.prefetch = Math.max(0, Integer.parseInt(flags.get("prefetch")));
+                if (flags.containsKey("sort")) o.sort = Boolean.parseBoolean(flags.get("sort"));
+                if (flags.containsKey("sort-memory")) o.sortMemory = parseSize(flags.get("sort-memory"));
+                return o;
+            }
+
+            // plain numbers are pages; KB/MB/GB sizes are converted to pages on open
+            static void parseCache(String s, Options o) {
+                String u = s.trim().toUpperCase();
+                if (u.endsWith("B")) {
+                    o.cacheBytes = parseSize(u);
+                } else {
+                    o.cachePages = clampPages(parseSize(u));
+                }
+            }
+
+            // a byte count with an optional KB/MB/GB suffix
+            static long parseSize(String s) {
+                String u = s.trim().toUpperCase();
+                long scale = 1;
+                if (u.endsWith("KB")) scale = 1L << 10;
+                else if (u.endsWith("MB")) scale = 1L << 20;
+                else if (u.endsWith("GB")) scale = 1L << 30;
+                if (scale != 1) u = u.substring(0, u.length() - 2).trim();
+                try {
+                    return Long.parseLong(u) * scale;
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("bad size: " + s);
+                }
+            }
+
+            static int clampPages(long pages) {
+                return (int) Math.max(MIN_CACHE_PAGES, Math.min(Integer.MAX_VALUE - 8, pages));
+            }
+
+            int formatFlags() {
+                return (compress ? FORMAT_COMPRESSED : 0) | (bplus ? FORMAT_BPLUS : 0);
+            }
+
+            int poolPages(int blockSize) {
+                return cacheBytes > 0 ? clampPages(cacheBytes / blockSize) : cachePages;
+            }
+
+            long sortMemoryBytes() {
+                return sortMemory > 0 ? sortMemory : Runtime.getRuntime().maxMemory() / 4;
+            }
+        }
+
+        BTree(String filename, boolean createIfMissing) throws IOException {
+            this(filename, createIfMissing, new Options());
+        }
+
+        BTree(String filename, boolean createIfMissing, Options options) throws IOException {
+            this.options = options;
+            Path path = Paths.get(filename);
+            if (!Files.exists(path)) {
+                if (createIfMissing) {
+                    create(filename, options.pageSize, options.degree, options.formatFlags());
+                } else {
+                    throw new FileNotFoundException("Index file not found: " + filename);
+                }
+            }
+            this.indexPath = path;
+            this.raf = new RandomAccessFile(filename, "rw");
+            this.chan = raf.getChannel();
+            readHeader();
+            this.pool = new BufferPool(options.poolPages(blockSize), this);
+            // mapped reads are left to the OS's own readahead
+            this.prefetchPages = options.mmap ? 0 : Math.min(options.prefetch, options.poolPages(blockSize) / 4);
+            this.metrics = new Metrics(options.stats);
+            if (options.stats) {
+                try {
+                    mbean = new ObjectName("Project3:type=BTree,file=" + ObjectName.quote(filename));
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, mbean);
+                } catch (JMException e) {
+                    System.err.println("Error: cannot register stats MBean: " + e.getMessage());
+                    mbean = null;
+                }
+            }
+            Path filterPath = BloomFilter.filterPath(indexPath);
+            if (Files.exists(filterPath)) bloom = BloomFilter.open(filterPath, options.sync, metrics.forces);
+            long generation = recoverLogs();
+            if (options.memtable > 0) {
+                writeBuffer = new WriteBuffer(options.memtable);
+                wal = new WriteAheadLog(indexPath, generation + 1, options.sync, metrics.forces);
+            }
+        }
+
+        // replay the write-ahead logs a crash left behind (whatever this open's
+        // --memtable), so the tree holds every logged insert; returns the newest
+        // generation seen. Logs are applied in the merge's own key order, so a
+        // crash mid-merge resumes after the walMerged pairs the last commit
+        // counted (a crash partway through writing a commit's pages can still
+        // leave some of the pairs after those in twice).
+        private long recoverLogs() throws IOException {
+            long[] gens = WriteAheadLog.generations(indexPath);
+            long newest = walApplied;
+            long replayed = 0;
+            for (long g : gens) {
+                newest = Math.max(newest, g);
+                if (g > walApplied) {
+                    PairList logged = new PairList();
+                    WriteAheadLog.replay(WriteAheadLog.logPath(indexPath, g), logged::add);
+                    if (bloom != null) {
+                        for (int i = 0; i < logged.size(); i++) bloom.add(logged.keys[i]);
+                    }
+                    logged.sortUnsigned();
+                    replayed += applyLogged(g, logged);
+                }
+            }
+            if (gens.length == 0) return newest;
+            commit();
+            for (long g : gens) Files.deleteIfExists(WriteAheadLog.logPath(indexPath, g));
+            if (replayed > 0) System.err.println("Recovered " + replayed + " logged inserts");
+            return newest;
+        }
+
+        // Insert a generation's pairs (sorted as WriteBuffer.sorted() orders
+        // them) from where an interrupted merge left off, counting each one
+        // for the next commit's header; once all are in, the generation is
+        // marked merged. The pool holds on to dirty pages meanwhile, and a
+        // commit goes out once half of it is dirty, so merged pairs reach the
+        // file with a header that counts them. Returns the number inserted
+        private long applyLogged(long generation, PairList sorted) throws IOException {
+            int from;
+            synchronized (headerLock) {
+                // the count is for the generation right after the last merged one
+                from = generation == walApplied + 1 ? (int) Math.min(walMerged, sorted.size()) : 0;
+            }
+            int checkEvery = Math.max(1, pool.capacity() / 64);
+            pool.keepDirty = true;
+            try {
+                for (int i = from; i < sorted.size(); i++) {
+                    synchronized (mergeStepLock) {
+                        insertLatched(sorted.keys[i], sorted.values[i]);
+                        countMerged(i + 1, walApplied);
+                    }
+                    if ((i - from + 1) % checkEvery == 0 && pool.dirtyPages() > pool.capacity() / 2) commit();
+                }
+                synchronized (mergeStepLock) {
+                    countMerged(0, generation);
+                }
+            } finally {
+                pool.keepDirty = false;
+            }
+            return sorted.size() - from;
+        }
+
+        private void countMerged(long merged, long applied) {
+            synchronized (headerLock) {
+                walMerged = merged;
+                walApplied = applied;
+                headerDirty = true;
+            }
+        }
+
+        private void readHeader() throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(MIN_BLOCK_SIZE);
+            buf.order(ByteOrder.BIG_ENDIAN);
+            chan.read(buf, 0);
+            buf.flip();
+            byte[] magicBuf = new byte[8];
+            buf.get(magicBuf);
+            if (!Arrays.equals(magicBuf, MAGIC)) {
+                throw new IOException("Not a valid index file (magic mismatch)");
+            }
+            this.rootBlockId = buf.getLong();
+            this.nextBlockId = buf.getLong();
+            this.walApplied = buf.getLong(40);
+            this.walMerged = buf.getLong(48);
+            this.formatVersion = buf.getInt();
+            if (formatVersion == 0) {
+                blockSize = MIN_BLOCK_SIZE;
+                degree = LEGACY_DEGREE;
+            } else if (formatVersion == FORMAT_VERSION) {
+                blockSize = buf.getInt();
+                degree = buf.getInt();
+                formatFlags = buf.getInt();
+                if (!validGeometry(blockSize, degree)) {
+                    throw new IOException("Not a valid index file (bad block size " + blockSize + " or degree " + degree + ")");
+                }
+                if ((formatFlags & ~(FORMAT_COMPRESSED | FORMAT_BPLUS)) != 0) {
+                    throw new IOException("Unsupported index format flags " + formatFlags);
+                }
+            } else {
+                throw new IOException("Unsupported index format version " + formatVersion);
+            }
+            // pages evicted since the last commit may lie past the committed
+            // next block, and other evicted pages may point at them: never hand
+            // out a block the file already holds
+            long blocks = (chan.size() + blockSize - 1) / blockSize;
+            if (Long.compareUnsigned(nextBlockId, blocks) < 0) nextBlockId = blocks;
+            this.compressed = (formatFlags & FORMAT_COMPRESSED) != 0;
+            this.bplus = (formatFlags & FORMAT_BPLUS) != 0;
+            // a compressed entry takes at least 2 bytes (key gap and value)
+            this.maxKeys = compressed
+                    ? Math.min(COMPRESSED_KEYS_FACTOR * (2 * degree - 1), (blockSize - NODE_HEADER_BYTES) / 2)
+                    : 2 * degree - 1;
+            // rest unused
+        }
+
+        private void writeHeader(long root, long next, long applied, long merged) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(MIN_BLOCK_SIZE);
+            buf.order(ByteOrder.BIG_ENDIAN);
+            putHeader(buf, root, next, formatVersion, blockSize, degree, formatFlags, applied, merged);
+            // rest zeros
+            buf.position(MIN_BLOCK_SIZE);
+            buf.flip();
+            chan.write(buf, 0);
+            unsynced = true;
+            if (options.sync == SyncMode.ALWAYS) force();
+        }
+
+        // root/next changed: the header is rewritten at the next commit, once
+        // the pages it points at are on disk (under every sync mode)
+        private void headerChanged() {
+            synchronized (headerLock) {
+                headerDirty = true;
+            }
+        }
+
+        // Group commit: write back every dirty cached node (in block order) and
+        // the header if it changed, then make the whole batch durable with one force.
+        // The header is taken before the pages are written and goes out after
+        // them, so it never points at a page this flush missed; when a sync is
+        // asked for, the pages are forced first, so a crash can't keep a header
+        // without them. With --memtable, buffered inserts are made durable by
+        // forcing the log.
+        void commit() throws IOException {
+            long t0 = metrics.timing ? System.nanoTime() : 0;
+            synchronized (bufferLock) {
+                if (wal != null) wal.sync();
+            }
+            synchronized (mergeStepLock) {
+                boolean changed;
+                long root, next, applied, merged;
+                synchronized (headerLock) {
+                    changed = headerDirty;
+                    headerDirty = false;
+                    root = rootBlockId;
+                    next = nextBlockId;
+                    applied = walApplied;
+                    merged = walMerged;
+                }
+                try {
+                    pool.flushDirty();
+                    if (changed) {
+                        if (options.sync != SyncMode.NONE && unsynced) force();
+                        writeHeader(root, next, applied, merged);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    if (changed) headerChanged();
+                    throw e;
+                }
+            }
+            if (options.sync != SyncMode.NONE && unsynced) force();
+            if (metrics.timing) metrics.commits.record(System.nanoTime() - t0);
+        }
+
+        private void force() throws IOException {
+            unsynced = false;
+            chan.force(true);
+            metrics.forces.increment();
+        }
+
+        // allocate new node: assign block id = nextBlockId, increment, update header.
+        // The node is returned pinned and write-latched.
+        private Node allocateNode() throws IOException {
+            long id;
+            synchronized (headerLock) {
+                id = nextBlockId;
+                nextBlockId++;
+                headerChanged();
+            }
+            Node n = pool.install(id);
+            if (n == null) throw new IOException("Corrupt index: new block " + id + " is already in use");
+            n.clear();
+            n.setDirty(true);
+            return n;
+        }
+
+        // read node from the pool (or from disk). The node is returned pinned and
+        // must be released with unpin() once the caller stops using it.
+        private Node readNode(long blockId) throws IOException {
+            // block 0 is the header: a node pointing there was never written out
+            if (blockId == NO_BLOCK) throw new IOException("Corrupt index: reference to block 0 (the header)");
+            Node node;
+            do {
+                Node n = pool.get(blockId);
+                if (n != null) {
+                    metrics.poolHits.increment();
+                    return n;
+                }
+                // else decode into a recycled pool frame; install() hands it over
+                // write-latched, so concurrent readers of this block wait for the decode
+                node = pool.install(blockId);
+            } while (node == null);
+            metrics.poolMisses.increment();
+            metrics.blocksRead.increment();
+            // a prefetch of this block still queued now has nothing to do
+            if (prefetcher != null) prefetching.remove(blockId);
+            try {
+                long pos = blockId * (long)blockSize;
+                if (options.mmap) {
+                    // decode straight out of the mapping: no read call, no copy
+                    ensureMapped(pos + blockSize);
+                    decodeNode(segments[(int) (pos / MMAP_SEGMENT_BYTES)], (int) (pos % MMAP_SEGMENT_BYTES), node, blockId);
+                } else {
+                    ByteBuffer buf = blockBuffer.get();
+                    buf.clear();
+                    int read = chan.read(buf, pos);
+                    if (read != blockSize) {
+                        throw new IOException("Failed to read full node block at " + blockId);
+                    }
+                    decodeNode(buf, 0, node, blockId);
+                }
+            } catch (IOException | RuntimeException e) {
+                // invalidated before the latch is released, so no reader waiting
+                // on it can see a half-decoded node under the requested id
+                pool.discard(node);
+                node.latch.writeLock().unlock();
+                unpin(node);
+                throw e;
+            }
+            node.latch.writeLock().unlock();
+            return node;
+        }
+
+        // decode the block starting at base using absolute gets (buf is not moved)
+        private void decodeNode(ByteBuffer buf, int base, Node node, long blockId) throws IOException {
+            checkBlockId(buf.getLong(base), blockId);
+            node.parent = buf.getLong(base + 8);
+            int flags = buf.getInt(base + 16);
+            node.numKeys = buf.getInt(base + 20);
+            int off = base + NODE_HEADER_BYTES;
+            if (compressed) {
+                node.leaf = (flags & NODE_LEAF) != 0;
+                decodePacked(buf, off, node);
+                return;
+            }
+            for (int i = 0; i < maxKeys; i++, off += 8) {
+                node.keys[i] = buf.getLong(off);
+            }
+            for (int i = 0; i < maxKeys; i++, off += 8) {
+                node.values[i] = buf.getLong(off);
+            }
+            for (int i = 0; i <= maxKeys; i++, off += 8) {
+                node.children[i] = buf.getLong(off);
+            }
+            // version 0 blocks have no flags; only leaves lack a first child
+            node.leaf = formatVersion == 0 ? node.children[0] == NO_BLOCK : (flags & NODE_LEAF) != 0;
+            node.next = NO_BLOCK;
+            if (bplus && node.leaf) {
+                node.next = node.children[0];
+                node.children[0] = NO_BLOCK;
+            }
+        }
+
+        private void decodePacked(ByteBuffer buf, int off, Node node) {
+            int n = node.numKeys;
+            long key = 0;
+            for (int i = 0; i < n; i++) {
+                long gap = getVarLong(buf, off);
+                off += varLen(gap);
+                key += gap;
+                node.keys[i] = key;
+            }
+            for (int i = 0; i < n; i++) {
+                node.values[i] = getVarLong(buf, off);
+                off += varLen(node.values[i]);
+            }
+            node.next = NO_BLOCK;
+            if (node.leaf) {
+                // recycled Node: clear every child slot, leaf inserts grow into them
+                Arrays.fill(node.children, NO_BLOCK);
+                if (bplus) node.next = getVarLong(buf, off);
+                return;
+            }
+            for (int i = 0; i <= n; i++) {
+                node.children[i] = getVarLong(buf, off);
+                off += varLen(node.children[i]);
+            }
+        }
+
+        // flyweight over a mapped block that is not in the pool (--mmap only)
+        private NodeView mappedView(long blockId) throws IOException {
+            long pos = blockId * (long)blockSize;
+            ensureMapped(pos + blockSize);
+            NodeView v = nodeView.get().wrap(segments[(int) (pos / MMAP_SEGMENT_BYTES)], (int) (pos % MMAP_SEGMENT_BYTES));
+            checkBlockId(v.id(), blockId);
+            return v;
+        }
+
+        // every node block starts with its own id; anything else there (zeros
+        // from a block never written) means a pointer to it is bad
+        private static void checkBlockId(long stored, long blockId) throws IOException {
+            if (stored != blockId) {
+                throw new IOException("Corrupt index: block " + blockId + " holds no node (stored id " + stored + ")");
+            }
+        }
+
+        // Make sure [0, end) is mapped. The file is mapped read-only in
+        // MMAP_SEGMENT_BYTES pieces up to its current size; as nextBlockId
+        // advances and blocks get written past the mapped end, the partial last
+        // segment is remapped and new segments are added. Writes still go
+        // through chan.write, which the mapping sees via the shared page cache.
+        private void ensureMapped(long end) throws IOException {
+            if (end <= mappedBytes) return;
+            synchronized (this) {
+                remap(end);
+            }
+        }
+
+        private void remap(long end) throws IOException {
+            if (end <= mappedBytes) return;
+            long size = chan.size();
+            if (end > size) throw new IOException("Block past end of file at offset " + (end - blockSize));
+            int count = (int) ((size + MMAP_SEGMENT_BYTES - 1) / MMAP_SEGMENT_BYTES);
+            MappedByteBuffer[] segs = Arrays.copyOf(segments, count);
+            for (int k = (int) (mappedBytes / MMAP_SEGMENT_BYTES); k < count; k++) {
+                long start = (long) k * MMAP_SEGMENT_BYTES;
+                segs[k] = chan.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MMAP_SEGMENT_BYTES, size - start));
+            }
+            segments = segs;
+            mappedBytes = size;
+        }
+
+        private void unpin(Node n) {
+            pool.unpin(n);
+        }
+
+        // Latching helpers. Latches are only ever held on pinned nodes, and
+        // always top-down, so a latch holder never waits on anything above it.
+        // After latching, a node whose load failed (see BufferPool.discard) no
+        // longer carries the requested id.
+        private void latchRead(Node n, long blockId) throws IOException {
+            n.latch.readLock().lock();
+            if (n.blockId != blockId) {
+                releaseRead(n);
+                throw new IOException("Failed to load node block " + blockId);
+            }
+        }
+
+        private Node readLatched(long blockId) throws IOException {
+            Node n = readNode(blockId);
+            latchRead(n, blockId);
+            return n;
+        }
+
+        private Node writeLatched(long blockId) throws IOException {
+            Node n = readNode(blockId);
+            n.latch.writeLock().lock();
+            if (n.blockId != blockId) {
+                releaseWrite(n);
+                throw new IOException("Failed to load node block " + blockId);
+            }
+            return n;
+        }
+
+        private void releaseRead(Node n) {
+            n.latch.readLock().unlock();
+            unpin(n);
+        }
+
+        private void releaseWrite(Node n) {
+            n.latch.writeLock().unlock();
+            unpin(n);
+        }
+
+        // serialize node at buf's position; always advances exactly one block
+        private void encodeNode(Node node, ByteBuffer buf) {
+            int start = buf.position();
+            buf.putLong(node.blockId);
+            buf.putLong(node.parent);
+            // version 0 files keep num_keys as a plain 8-byte count
+            buf.putInt(node.leaf && formatVersion != 0 ? NODE_LEAF : 0);
+            buf.putInt(node.numKeys);
+            if (compressed) {
+                encodePacked(node, buf);
+                if (buf.position() > start + blockSize) {
+                    throw new IllegalStateException("node " + node.blockId + " overflows its block");
+                }
+                while (buf.position() < start + blockSize) buf.put((byte) 0);
+                return;
+            }
+            for (int i = 0; i < maxKeys; i++) buf.putLong(node.keys[i]);
+            for (int i = 0; i < maxKeys; i++) buf.putLong(node.values[i]);
+            // a B+tree leaf keeps its next-leaf link in the unused first child slot
+            buf.putLong(bplus && node.leaf ? node.next : node.children[0]);
+            for (int i = 1; i <= maxKeys; i++) buf.putLong(node.children[i]);
+            // pad remainder with zeros (scratch buffers are reused)
+            while (buf.position() < start + blockSize) buf.put((byte) 0);
+        }
+
+        private void encodePacked(Node node, ByteBuffer buf) {
+            long prev = 0;
+            for (int i = 0; i < node.numKeys; i++) {
+                putVarLong(buf, node.keys[i] - prev);
+                prev = node.keys[i];
+            }
+            for (int i = 0; i < node.numKeys; i++) putVarLong(buf, node.values[i]);
+            if (!node.leaf) {
+                for (int i = 0; i <= node.numKeys; i++) putVarLong(buf, node.children[i]);
+            } else if (bplus) {
+                putVarLong(buf, node.next);
+            }
+        }
+
+        // bytes keys[from..from+count) and their values take in a compressed node
+        private static int packedBytes(long[] keys, long[] values, int from, int count) {
+            int bytes = 0;
+            long prev = 0;
+            for (int i = from; i < from + count; i++) {
+                bytes += varLen(keys[i] - prev) + varLen(values[i]);
+                prev = keys[i];
+            }
+            return bytes;
+        }
+
+        // encoded size of a compressed node, header included
+        private int packedSize(Node n) {
+            int bytes = NODE_HEADER_BYTES + packedBytes(n.keys, n.values, 0, n.numKeys);
+            if (!n.leaf) {
+                for (int i = 0; i <= n.numKeys; i++) bytes += varLen(n.children[i]);
+            } else if (bplus) {
+                bytes += varLen(n.next);
+            }
+            return bytes;
+        }
+
+        // Unsigned LEB128: 7 bits per byte, low groups first, high bit = more.
+        static int varLen(long v) {
+            return (64 - Long.numberOfLeadingZeros(v | 1) + 6) / 7;
+        }
+
+        static void putVarLong(ByteBuffer buf, long v) {
+            while ((v & ~0x7FL) != 0) {
+                buf.put((byte) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            buf.put((byte) v);
+        }
+
+        static long getVarLong(ByteBuffer buf, int off) {
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf.get(off++);
+                v |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return v;
+        }
+
+        // A descent may only enter a node with room for one more entry: a free
+        // key slot, and for compressed pages the bytes for a worst-case entry.
+        private boolean isFull(Node n) {
+            if (n.numKeys >= maxKeys) return true;
+            return compressed && packedSize(n) + MAX_ENTRY_BYTES > blockSize;
+        }
+
+        boolean isEmpty() {
+            return rootBlockId == NO_BLOCK;
+        }
+
+        // Build the tree bottom-up from pairs sorted by unsigned key. The shape of
+        // every level is planned first so block ids (and parent ids) are known up
+        // front; then the leaves are written left to right, then each internal
+        // level above them, so every block is written once and in file order.
+        // A Bloom filter is replaced by one sized for the pairs.
+        void bulkLoad(PairList pairs, double fill) throws IOException {
+            mergeWriteBuffer();
+            BloomFilter f = bloom;
+            if (f != null) f.markInUse();
+            rootLatch.writeLock().lock();
+            try {
+                buildBottomUp(pairs, fill);
+                if (f != null && pairs.size() > 0) {
+                    BloomFilter fresh = new BloomFilter(f.path, pairs.size(), options.bloomBits, options.sync, metrics.forces);
+                    for (int i = 0; i < pairs.size(); i++) fresh.add(pairs.keys[i]);
+                    bloom = fresh;
+                }
+            } finally {
+                rootLatch.writeLock().unlock();
+            }
+            commit();
+        }
+
+        private void buildBottomUp(PairList pairs, double fill) throws IOException {
+            if (!isEmpty()) throw new IOException("bulk load requires an empty index");
+            int n = pairs.size();
+            if (n == 0) return;
+            int cap = Math.max(degree - 1, Math.min(maxKeys, (int) Math.round(fill * maxKeys)));
+            // nothing else allocates while an empty tree's root latch is held
+            long start;
+            synchronized (headerLock) {
+                start = nextBlockId;
+            }
+
+            // level 0 holds the leaves; each level above holds one separator
+            // between every pair of adjacent nodes of the level below. In a
+            // B+tree, leaf separators are copies of the next leaf's first key;
+            // everywhere else they move up. The separators are picked while
+            // planning, because the shape of a compressed level depends on the
+            // bytes of its keys and child ids.
+            List<Integer> shape = new ArrayList<>();
+            List<long[]> levelKeys = new ArrayList<>();
+            List<long[]> levelValues = new ArrayList<>();
+            long[] keys = pairs.keys;
+            long[] values = pairs.values;
+            int items = n;
+            long firstChild = NO_BLOCK;   // first id of the level below
+            long levelStart = start;
+            while (true) {
+                boolean copy = bplus && firstChild == NO_BLOCK;
+                int nodes = compressed ? packedNodeCount(keys, values, items, firstChild, fill, copy)
+                                       : bulkNodeCount(items, cap, degree - 1, copy);
+                shape.add(nodes);
+                levelKeys.add(keys);
+                levelValues.add(values);
+                if (nodes == 1) break;
+                long[] sepKeys = new long[nodes - 1];
+                long[] sepValues = new long[nodes - 1];
+                for (int j = 0, pos = 0; j < nodes - 1; j++) {
+                    pos += bulkKeysInNode(items, nodes, j, copy);
+                    sepKeys[j] = keys[pos];
+                    sepValues[j] = values[pos];
+                    if (!copy) pos++;
+                }
+                firstChild = levelStart;
+                levelStart += nodes;
+                keys = sepKeys;
+                values = sepValues;
+                items = nodes - 1;
+            }
+            int levels = shape.size();
+            long[] firstId = new long[levels];
+            long id = start;
+            for (int h = 0; h < levels; h++) {
+                firstId[h] = id;
+                id += shape.get(h);
+            }
+            synchronized (headerLock) {
+                nextBlockId = id;
+                headerDirty = true;
+            }
+
+            ByteBuffer batch = ByteBuffer.allocate(WRITE_BATCH_BLOCKS * blockSize);
+            batch.order(ByteOrder.BIG_ENDIAN);
+            long writePos = firstId[0] * (long) blockSize;
+
+            for (int h = 0; h < levels; h++) {
+                int nodes = shape.get(h);
+                boolean hasParent = h + 1 < levels;
+                long[] srcKeys = levelKeys.get(h);
+                long[] srcValues = levelValues.get(h);
+                int srcCount = h == 0 ? n : shape.get(h - 1) - 1;
+                boolean copy = bplus && h == 0;
+                int parentIdx = 0;
+                int parentChildrenLeft = hasParent ? bulkKeysInNode(nodes - 1, shape.get(h + 1), 0, false) + 1 : 0;
+                int pos = 0;
+                long nextChild = h > 0 ? firstId[h - 1] : NO_BLOCK;
+                for (int j = 0; j < nodes; j++) {
+                    int count = bulkKeysInNode(srcCount, nodes, j, copy);
+                    Node node = new Node(firstId[h] + j, maxKeys);
+                    node.parent = hasParent ? firstId[h + 1] + parentIdx : NO_BLOCK;
+                    node.leaf = h == 0;
+                    if (copy && j < nodes - 1) node.next = node.blockId + 1;
+                    node.numKeys = count;
+                    System.arraycopy(srcKeys, pos, node.keys, 0, count);
+                    System.arraycopy(srcValues, pos, node.values, 0, count);
+                    if (h > 0) {
+                        for (int c = 0; c <= count; c++) node.children[c] = nextChild++;
+                    }
+                    pos += copy ? count : count + 1;   // skip a separator that moved up
+                    encodeNode(node, batch);
+                    if (!batch.hasRemaining()) writePos = writeBatch(batch, writePos);
+                    if (hasParent && --parentChildrenLeft == 0 && ++parentIdx < shape.get(h + 1)) {
+                        parentChildrenLeft = bulkKeysInNode(nodes - 1, shape.get(h + 1), parentIdx, false) + 1;
+                    }
+                }
+            }
+            writeBatch(batch, writePos);
+            rootBlockId = id - 1;
+            structureVersion.incrementAndGet();
+        }
+
+        private long writeBatch(ByteBuffer batch, long pos) throws IOException {
+            batch.flip();
+            metrics.writeCalls.increment();
+            metrics.blocksWritten.add(batch.remaining() / blockSize);
+            while (batch.hasRemaining()) {
+                pos += chan.write(batch, pos);
+            }
+            unsynced = true;
+            batch.clear();
+            return pos;
+        }
+
+        // fewest nodes holding items keys (minus the separators between them,
+        // unless they are copied up) with at most cap keys each, while keeping
+        // every node at minKeys keys or more
+        private static int bulkNodeCount(int items, int cap, int minKeys, boolean copy) {
+            if (copy) {
+                int nodes = (items + cap - 1) / cap;
+                while (nodes > 1 && items / nodes < minKeys) nodes--;
+                return Math.max(nodes, 1);
+            }
+            int nodes = (items + cap + 1) / (cap + 1);   // ceil((items + 1) / (cap + 1))
+            while (nodes > 1 && (items + 1) / nodes - 1 < minKeys) nodes--;
+            return Math.max(nodes, 1);
+        }
+
+        // Compressed levels: fewest evenly spread nodes whose entries all fit in
+        // fill of the block. Starts from the level's total bytes and adds nodes
+        // until every node fits; a single entry always does.
+        private int packedNodeCount(long[] keys, long[] values, int items, long firstChild, double fill, boolean copy) {
+            int budget = (int) (fill * (blockSize - NODE_HEADER_BYTES));
+            int cap = Math.max(1, Math.min(maxKeys, (int) Math.round(fill * maxKeys)));
+            long total = packedBytes(keys, values, 0, items);
+            if (firstChild != NO_BLOCK) total += (long) (items + 1) * varLen(firstChild + items);
+            int most = copy ? items : Math.max(1, (items + 1) / 2);
+            int nodes = (int) Math.min(most, Math.max(bulkNodeCount(items, cap, 1, copy), (total + budget - 1) / budget));
+            while (nodes < most && !packedLevelFits(keys, values, items, nodes, firstChild, budget, copy)) {
+                nodes = Math.min(most, Math.max(nodes + 1, nodes + nodes / 64));
+            }
+            return nodes;
+        }
+
+        private boolean packedLevelFits(long[] keys, long[] values, int items, int nodes, long firstChild, int budget,
+                                        boolean copy) {
+            long child = firstChild;
+            for (int j = 0, pos = 0; j < nodes; j++) {
+                int count = bulkKeysInNode(items, nodes, j, copy);
+                int bytes = packedBytes(keys, values, pos, count);
+                if (child != NO_BLOCK) {
+                    for (int c = 0; c <= count; c++) bytes += varLen(child++);
+                }
+                if (copy) bytes += MAX_VARLONG_BYTES;   // next-leaf link
+                if (bytes > budget) return false;
+                pos += copy ? count : count + 1;
+            }
+            return true;
+        }
+
+        // keys in node j when items are spread evenly over nodes (separators
+        // excluded unless they are copied up)
+        private static int bulkKeysInNode(int items, int nodes, int j, boolean copy) {
+            int keys = copy ? items : items - (nodes - 1);
+            return keys / nodes + (j < keys % nodes ? 1 : 0);
+        }
+
+        // Write a batch of dirty nodes in block order, coalescing runs of
+        // consecutive block ids into single writes. Used for pool write-back.
+        // Callers either hold the pool lock on unpinned nodes (nobody can latch
+        // them) or pins. Each node stays read-latched from its encode until its
+        // run is on disk, so a newer version written by another flush or by
+        // writeNode can never be overwritten by this older copy. A latch is
+        // only waited for while no others are held.
+        void writeNodes(List<Node> nodes) throws IOException {
+            if (nodes.isEmpty()) return;
+            nodes.sort(Node.BY_BLOCK_ID);
+            ByteBuffer buf = batchBuffer.get();
+            buf.clear();
+            Node[] run = batchNodes.get();
+            long runStart = NO_BLOCK;
+            int inRun = 0;
+            try {
+                for (Node n : nodes) {
+                    if (inRun > 0 && (n.blockId != runStart + inRun || inRun == run.length)) {
+                        writeRun(buf, runStart, run, inRun);
+                        inRun = 0;
+                    }
+                    if (!n.latch.readLock().tryLock()) {
+                        if (inRun > 0) {
+                            writeRun(buf, runStart, run, inRun);
+                            inRun = 0;
+                        }
+                        n.latch.readLock().lock();
+                    }
+                    if (inRun == 0) runStart = n.blockId;
+                    run[inRun++] = n;
+                    encodeNode(n, buf);
+                }
+                writeRun(buf, runStart, run, inRun);
+                inRun = 0;
+            } finally {
+                for (int i = 0; i < inRun; i++) {
+                    run[i].latch.readLock().unlock();
+                    run[i] = null;
+                }
+            }
+            if (options.sync == SyncMode.ALWAYS) force();
+        }
+
+        // write the encoded run, then mark its nodes clean and drop their latches
+        private void writeRun(ByteBuffer buf, long runStart, Node[] run, int count) throws IOException {
+            writeBatch(buf, runStart * blockSize);
+            for (int i = 0; i < count; i++) {
+                run[i].setDirty(false);
+                run[i].latch.readLock().unlock();
+                run[i] = null;
+            }
+        }
+
+        // Search public
+        static class Result {
+            boolean found;
+            long key;
+            long value;
+            Result(boolean f) { found = f; }
+        }
+
+        Result search(long key) throws IOException {
+            long[] out = new long[1];
+            if (!lookup(key, out)) return new Result(false);
+            Result r = new Result(true);
+            r.key = key;
+            r.value = out[0];
+            return r;
+        }
+
+        // Allocation-free point lookup: returns whether key is present and, if so,
+        // stores its value in out[0]. Descends with read-latch crabbing: a child
+        // is latched before the parent's latch is let go. With --mmap, blocks
+        // that are not in the pool are searched in place through a NodeView;
+        // the latch still held on the nearest pooled ancestor (or the root
+        // latch) keeps writers out of that subtree while the view is read.
+        boolean lookup(long key, long[] out) throws IOException {
+            if (!metrics.timing) return lookupBuffered(key, out);
+            long t0 = System.nanoTime();
+            try {
+                return lookupBuffered(key, out);
+            } finally {
+                metrics.lookups.record(System.nanoTime() - t0);
+            }
+        }
+
+        // the Bloom filter rules out most absent keys without a page read. The
+        // newest insert of a key wins, so the write buffer is searched next,
+        // then the older merging buffer, then the tree
+        private boolean lookupBuffered(long key, long[] out) throws IOException {
+            BloomFilter f = bloom;
+            if (f != null && !f.mightContain(key)) {
+                metrics.bloomNegatives.increment();
+                return false;
+            }
+            if (writeBuffer != null) {
+                synchronized (bufferLock) {
+                    if (writeBuffer.get(key, out)) return true;
+                }
+                // read after the write buffer: a swap in between leaves the
+                // entries here, and a finished merge leaves them in the tree
+                WriteBuffer merging = mergingBuffer;
+                if (merging != null && merging.get(key, out)) return true;
+            }
+            return lookupLatched(key, out);
+        }
+
+        private boolean lookupLatched(long key, long[] out) throws IOException {
+            Lock held = rootLatch.readLock();
+            Node heldNode = null;
+            boolean found = false;
+            held.lock();
+            try {
+                long blockId = rootBlockId;
+                while (blockId != NO_BLOCK) {
+                    // compressed blocks can't be searched in place: decode into the pool
+                    Node n = options.mmap && !compressed ? pool.get(blockId) : readNode(blockId);
+                    if (n == null) {
+                        metrics.poolMisses.increment();
+                        metrics.blocksRead.increment();
+                        NodeView v = mappedView(blockId);
+                        int i = v.upperBound(key);
+                        if (bplus && !v.leaf()) {
+                            blockId = v.child(i);
+                            continue;
+                        }
+                        if (i > 0 && key == v.key(i - 1)) {
+                            out[0] = v.value(i - 1);
+                            found = true;
+                        }
+                        // a B+tree leaf's first child slot is its next-leaf link
+                        if (bplus) return found;
+                        blockId = v.child(i);
+                        continue;
+                    }
+                    if (options.mmap && !compressed) metrics.poolHits.increment();
+                    latchRead(n, blockId);
+                    held.unlock();
+                    if (heldNode != null) unpin(heldNode);
+                    held = n.latch.readLock();
+                    heldNode = n;
+                    int i = upperBound(n.keys, n.numKeys, key);
+                    if (bplus && !n.leaf) {
+                        // separators only route: equal keys live to the right
+                        blockId = n.children[i];
+                        continue;
+                    }
+                    // duplicates lie in insertion order, so a copy in the child
+                    // right of an equal key is newer: keep descending
+                    if (i > 0 && key == n.keys[i - 1]) {
+                        out[0] = n.values[i - 1];
+                        found = true;
+                    }
+                    if (bplus) return found;
+                    blockId = n.children[i];
+                }
+                return found;
+            } finally {
+                held.unlock();
+                if (heldNode != null) unpin(heldNode);
+            }
+        }
+
+        // Insert public. Writers crab down with write latches: the root latch is
+        // held until the root is known not to split, and each parent is released
+        // once its child has been latched (and split if it was full), so the
+        // proactive splits below only ever touch latched nodes.
+        void insert(long key, long value) throws IOException {
+            if (!metrics.timing) {
+                insertBuffered(key, value);
+                return;
+            }
+            long t0 = System.nanoTime();
+            try {
+                insertBuffered(key, value);
+            } finally {
+                metrics.inserts.record(System.nanoTime() - t0);
+            }
+        }
+
+        private void insertBuffered(long key, long value) throws IOException {
+            BloomFilter f = bloom;
+            if (f != null) f.add(key);
+            if (writeBuffer == null) {
+                insertLatched(key, value);
+                return;
+            }
+            boolean full;
+            synchronized (bufferLock) {
+                wal.append(key, value);
+                writeBuffer.add(key, value);
+                full = writeBuffer.size() >= options.memtable;
+            }
+            if (full) mergeWriteBuffer();
+        }
+
+        // Move the buffered inserts into the tree in key order. New inserts go
+        // to a fresh buffer and log meanwhile; the old buffer stays searchable
+        // until the tree is committed with its generation in the header, and
+        // only then is its log deleted.
+        void mergeWriteBuffer() throws IOException {
+            if (writeBuffer == null) return;
+            mergeLock.lock();
+            try {
+                WriteBuffer full;
+                WriteAheadLog log;
+                synchronized (bufferLock) {
+                    if (writeBuffer.size() == 0) return;
+                    full = writeBuffer;
+                    log = wal;
+                    // entries acknowledged by an earlier commit are forced already
+                    log.close();
+                    wal = new WriteAheadLog(indexPath, log.generation + 1, options.sync, metrics.forces);
+                    mergingBuffer = full;
+                    writeBuffer = new WriteBuffer(options.memtable);
+                }
+                applyLogged(log.generation, full.sorted());
+                commit();
+                mergingBuffer = null;
+                log.delete();
+            } finally {
+                mergeLock.unlock();
+            }
+        }
+
+        private void insertLatched(long key, long value) throws IOException {
+            int append = tryAppend(key, value);
+            if (append == APPENDED) return;
+            boolean appending = append == APPEND_FULL;
+            // common case: the root exists and has room, so the root latch is
+            // only needed shared while the root itself is latched
+            rootLatch.readLock().lock();
+            try {
+                if (rootBlockId != NO_BLOCK) {
+                    Node root = writeLatched(rootBlockId);
+                    if (!isFull(root)) {
+                        rootLatch.readLock().unlock();
+                        insertNonFull(root, key, value, appending);
+                        return;
+                    }
+                    releaseWrite(root);
+                }
+            } finally {
+                if (rootLatch.getReadHoldCount() > 0) rootLatch.readLock().unlock();
+            }
+            // empty tree or full root: the root may change, so take it exclusively
+            Lock rootLock = rootLatch.writeLock();
+            rootLock.lock();
+            boolean rootLocked = true;
+            try {
+                if (rootBlockId == NO_BLOCK) {
+                    // create root node
+                    Node root = allocateNode();
+                    root.parent = NO_BLOCK;
+                    root.numKeys = 1;
+                    root.keys[0] = key;
+                    root.values[0] = value;
+                    // all children zero by default
+                    root.setDirty(true);
+                    rootBlockId = root.blockId;
+                    headerChanged();
+                    releaseWrite(root);
+                    return;
+                }
+                Node root = writeLatched(rootBlockId);
+                if (isFull(root)) {
+                    // split root
+                    Node s = allocateNode();
+                    s.parent = NO_BLOCK;
+                    s.numKeys = 0;
+                    s.leaf = false;
+                    s.children[0] = root.blockId;
+                    root.parent = s.blockId;
+                    s.setDirty(true);
+                    root.setDirty(true);
+                    // update root id
+                    rootBlockId = s.blockId;
+                    headerChanged();
+                    Node z = splitChild(s, 0, root, splitAt(root, true, appending || (root.leaf && appendsTo(root, key))));
+                    releaseWrite(root);
+                    releaseWrite(z);
+                    root = s;
+                }
+                rootLock.unlock();
+                rootLocked = false;
+                insertNonFull(root, key, value, appending);
+            } finally {
+                if (rootLocked) rootLock.unlock();
+            }
+        }
+
+        // tryAppend results
+        private static final int NOT_APPEND = 0;
+        private static final int APPENDED = 1;
+        private static final int APPEND_FULL = 2;   // an append, but the leaf must split
+
+        // Append fast path: a key above every key in the tree belongs at the end
+        // of the rightmost leaf. While no split has happened since an insert
+        // last saw that leaf, it is still the rightmost one (only a split can
+        // change that, and splitting it needs its latch), so the key goes
+        // straight in without a descent.
+        private int tryAppend(long key, long value) throws IOException {
+            long[] cached = appendLeaf;
+            if (cached == null || cached[1] != structureVersion.get()) return NOT_APPEND;
+            Node leaf = writeLatched(cached[0]);
+            try {
+                // a split may have slipped in before the latch
+                if (cached[1] != structureVersion.get() || !appendsTo(leaf, key)) return NOT_APPEND;
+                if (isFull(leaf)) return APPEND_FULL;
+                leaf.keys[leaf.numKeys] = key;
+                leaf.values[leaf.numKeys] = value;
+                leaf.numKeys++;
+                leaf.setDirty(true);
+                metrics.appends.increment();
+                return APPENDED;
+            } finally {
+                releaseWrite(leaf);
+            }
+        }
+
+        // key sorts after every key in n
+        private static boolean appendsTo(Node n, long key) {
+            return n.numKeys > 0 && Long.compareUnsigned(key, n.keys[n.numKeys - 1]) > 0;
+        }
+
+        // Split point for full node y. Inserts on the tree's right edge mostly
+        // come in key order, so there the left node is left (nearly) full and
+        // z starts (nearly) empty: completely for an append, otherwise to
+        // RIGHT_EDGE_FILL with at least one key moved (as the key may still
+        // go left). Anywhere else the split is even.
+        private int splitAt(Node y, boolean rightEdge, boolean append) {
+            if (!rightEdge) return splitPoint(y);
+            int most = appendSplitPoint(y);
+            if (append) return most;
+            int edge = Math.min(y.numKeys - 2, (int) (y.numKeys * RIGHT_EDGE_FILL));
+            return Math.max(splitPoint(y), Math.min(most, edge));
+        }
+
+        // split child y of parent x at index i around key mid; x and y are
+        // write-latched by the caller. Returns the new right sibling z, pinned
+        // and write-latched.
+        private Node splitChild(Node x, int i, Node y, int mid) throws IOException {
+            // y is full. Create z
+            metrics.splits.increment();
+            Node z = allocateNode();
+            z.parent = x.blockId;
+            z.leaf = y.leaf;
+            if (bplus && y.leaf) {
+                // B+tree leaf: z takes keys mid..numKeys-1, links in after y, and
+                // a copy of its first key goes up as the separator
+                z.numKeys = y.numKeys - mid;
+                System.arraycopy(y.keys, mid, z.keys, 0, z.numKeys);
+                System.arraycopy(y.values, mid, z.values, 0, z.numKeys);
+                z.next = y.next;
+                y.next = z.blockId;
+                y.numKeys = mid;
+                insertSeparator(x, i, z.keys[0], 0L, z.blockId);
+                y.setDirty(true);
+                z.setDirty(true);
+                structureVersion.incrementAndGet();
+                return z;
+            }
+            int moved = y.numKeys - mid - 1;
+            // z will take the keys after the median (i.e., keys mid+1..numKeys-1 -> move)
+            z.numKeys = moved;
+            // copy keys and values
+            System.arraycopy(y.keys, mid + 1, z.keys, 0, moved);
+            System.arraycopy(y.values, mid + 1, z.values, 0, moved);
+            // copy children if any
+            for (int j = 0; j <= moved && !y.leaf; j++) {
+                z.children[j] = y.children[j + mid + 1];
+                if (z.children[j] != NO_BLOCK) {
+                    try {
+                        Node child = writeLatched(z.children[j]);
+                        child.parent = z.blockId;
+                        child.setDirty(true);
+                        releaseWrite(child);
+                    } catch (IOException ex) {
+                        throw new IOException("Failed updating child parent on split: " + ex.getMessage());
+                    }
+                }
+            }
+            y.numKeys = mid;
+
+            // median key = y.keys[mid] moves up to x
+            insertSeparator(x, i, y.keys[mid], y.values[mid], z.blockId);
+            y.setDirty(true);
+            z.setDirty(true);
+            structureVersion.incrementAndGet();
+            return z;
+        }
+
+        // put key at x.keys[i] with the new right sibling z as child i+1
+        private void insertSeparator(Node x, int i, long key, long value, long z) {
+            // shift x's children to make room
+            for (int j = x.numKeys; j >= i+1; j--) {
+                x.children[j+1] = x.children[j];
+            }
+            x.children[i+1] = z;
+
+            // shift keys/values in x to make room for the separator
+            for (int j = x.numKeys - 1; j >= i; j--) {
+                x.keys[j+1] = x.keys[j];
+                x.values[j+1] = x.values[j];
+            }
+
+            x.keys[i] = key;
+            x.values[i] = value;
+            x.numKeys = x.numKeys + 1;
+            x.setDirty(true);
+        }
+
+        // Median index of a full node: t-1 for the fixed layout (2t-1 keys); for
+        // compressed pages, the key at which half the entry bytes lie to its
+        // left, so both halves keep room for new entries.
+        private int splitPoint(Node y) {
+            if (!compressed) return y.numKeys / 2;
+            int half = (packedSize(y) - NODE_HEADER_BYTES) / 2;
+            int bytes = 0;
+            long prev = 0;
+            for (int i = 0; i < y.numKeys; i++) {
+                bytes += varLen(y.keys[i] - prev) + varLen(y.values[i]) + (y.leaf ? 0 : varLen(y.children[i]));
+                prev = y.keys[i];
+                if (bytes >= half) return Math.max(1, Math.min(i, y.numKeys - 2));
+            }
+            return y.numKeys / 2;
+        }
+
+        // right-heavy split point for appends: a leaf gives up only its last key
+        // (to the parent in a classic split, to z in a B+tree) and an internal
+        // node hands z one key. A compressed y keeps only what leaves it room
+        // for one more entry, and never less than an even split.
+        private int appendSplitPoint(Node y) {
+            int mid = y.leaf ? y.numKeys - 1 : y.numKeys - 2;
+            if (!compressed) return mid;
+            int bytes = NODE_HEADER_BYTES + MAX_VARLONG_BYTES + MAX_ENTRY_BYTES;   // + last child or next link
+            long prev = 0;
+            for (int i = 0; i < mid; i++) {
+                bytes += varLen(y.keys[i] - prev) + varLen(y.values[i]) + (y.leaf ? 0 : varLen(y.children[i]));
+                prev = y.keys[i];
+                if (bytes > blockSize) return Math.max(i, splitPoint(y));
+            }
+            return mid;
+        }
+
+        // insert into node known to be non-full; takes over the caller's pin and
+        // write latch on x. x is on the tree's right edge when called (it is
+        // the root); appending says the key is known to exceed every key.
+        private void insertNonFull(Node x, long key, long value, boolean appending) throws IOException {
+            boolean rightmost = true;
+            while (true) {
+                // first slot past any keys <= key
+                int pos = upperBound(x.keys, x.numKeys, key);
+                if (isLeaf(x)) {
+                    if (rightmost) {
+                        long version = structureVersion.get();
+                        long[] cached = appendLeaf;
+                        if (cached == null || cached[0] != x.blockId || cached[1] != version) {
+                            appendLeaf = new long[]{x.blockId, version};
+                        }
+                    }
+                    // shift to make space
+                    System.arraycopy(x.keys, pos, x.keys, pos + 1, x.numKeys - pos);
+                    System.arraycopy(x.values, pos, x.values, pos + 1, x.numKeys - pos);
+                    // Insert at pos (if equal keys allowed? spec doesn't forbid duplicates — we'll allow duplicates and insert after existing)
+                    x.keys[pos] = key;
+                    x.values[pos] = value;
+                    x.numKeys++;
+                    x.setDirty(true);
+                    releaseWrite(x);
+                    return;
+                }
+                // find child index
+                int childIndex = pos;
+                rightmost &= childIndex == x.numKeys;
+                Node child = writeLatched(x.children[childIndex]);
+                if (isFull(child)) {
+                    // on the right edge, a leaf can tell an append by itself
+                    boolean append = rightmost && (appending || (child.leaf && appendsTo(child, key)));
+                    Node z = splitChild(x, childIndex, child, splitAt(child, rightmost, append));
+                    // after split, the middle key moves up to x.keys[childIndex];
+                    // a key equal to it goes right, after the older copy
+                    // (B+tree: keys equal to a separator belong to its right)
+                    if (Long.compareUnsigned(key, x.keys[childIndex]) >= 0) {
+                        releaseWrite(child);
+                        child = z;
+                    } else {
+                        releaseWrite(z);
+                        rightmost = false;
+                    }
+                }
+                // child is latched and not full: x is no longer needed
+                releaseWrite(x);
+                x = child;
+            }
+        }
+
+        private boolean isLeaf(Node n) {
+            return n.leaf;
+        }
+
+        // first index in keys[0..n) holding a key >= key (unsigned); n if none
+        static int lowerBound(long[] keys, int n, long key) {
+            int lo = 0, hi = n;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (Long.compareUnsigned(keys[mid], key) < 0) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        // first index in keys[0..n) holding a key > key (unsigned); n if none
+        static int upperBound(long[] keys, int n, long key) {
+            int lo = 0, hi = n;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (Long.compareUnsigned(keys[mid], key) <= 0) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        // Batched lookup of keys[0..n) sorted in unsigned order. The descent path
+        // is kept as a stack of (block id, exclusive upper bound) frames; each
+        // probe pops only the frames whose subtree it has moved past and resumes
+        // the descent from there, so consecutive probes share the upper levels
+        // instead of restarting at rootBlockId. Descents crab with read latches.
+        // If any split happened since the path was built, the stack may be
+        // stale and the probe starts again from the root. Returns the number found.
+        int lookupSorted(long[] keys, int n, long[] values, boolean[] found) throws IOException {
+            mergeWriteBuffer();
+            long[] ids = new long[16];
+            long[] his = new long[16];
+            boolean[] bounded = new boolean[16];
+            int[] ahead = new int[16];   // last probe whose child in the frame's node was prefetched
+            int depth = 0;
+            long pathVersion = 0;
+            int hits = 0;
+            BloomFilter f = bloom;
+            for (int p = 0; p < n; p++) {
+                long key = keys[p];
+                if (p > 0 && key == keys[p - 1]) {
+                    // the kept path may be below the copy the last probe found
+                    values[p] = values[p - 1];
+                    found[p] = found[p - 1];
+                    if (found[p]) hits++;
+                    continue;
+                }
+                found[p] = false;
+                if (f != null && !f.mightContain(key)) {
+                    metrics.bloomNegatives.increment();
+                    continue;
+                }
+                // probes ascend, so only upper bounds can be crossed
+                while (depth > 0 && bounded[depth - 1] && Long.compareUnsigned(key, his[depth - 1]) >= 0) depth--;
+                Node node = null;
+                if (depth > 0) {
+                    node = readLatched(ids[depth - 1]);
+                    if (structureVersion.get() != pathVersion) {
+                        releaseRead(node);
+                        node = null;
+                        depth = 0;
+                    }
+                }
+                if (depth == 0) {
+                    rootLatch.readLock().lock();
+                    try {
+                        if (rootBlockId == NO_BLOCK) continue;
+                        node = readLatched(rootBlockId);
+                    } finally {
+                        rootLatch.readLock().unlock();
+                    }
+                    pathVersion = structureVersion.get();
+                    ids[0] = node.blockId;
+                    bounded[0] = false;
+                    ahead[0] = p;
+                    depth = 1;
+                }
+                while (true) {
+                    boolean route = bplus && !node.leaf;
+                    int i = upperBound(node.keys, node.numKeys, key);
+                    // the newest duplicate is the last in key order (see lookupLatched)
+                    if (!route && i > 0 && key == node.keys[i - 1]) {
+                        values[p] = node.values[i - 1];
+                        if (!found[p]) hits++;
+                        found[p] = true;
+                    }
+                    if (bplus && node.leaf) break;
+                    long child = node.children[i];
+                    if (child == NO_BLOCK) break;
+                    boolean childBounded = i < node.numKeys || bounded[depth - 1];
+                    long childHi = i < node.numKeys ? node.keys[i] : his[depth - 1];
+                    if (prefetchPages > 0) {
+                        // start loading the children the next few probes descend to
+                        int q = Math.max(ahead[depth - 1], p) + 1;
+                        for (int last = i; q < n && q <= p + prefetchPages; q++) {
+                            long k = keys[q];
+                            if (bounded[depth - 1] && Long.compareUnsigned(k, his[depth - 1]) >= 0) break;
+                            if (f != null && !f.mightContain(k)) continue;
+                            int j = upperBound(node.keys, node.numKeys, k);
+                            if (j == last) continue;
+                            prefetch(node.children[j]);
+                            last = j;
+                        }
+                        ahead[depth - 1] = Math.max(ahead[depth - 1], q - 1);
+                    }
+                    Node c = readLatched(child);
+                    releaseRead(node);
+                    node = c;
+                    if (depth == ids.length) {
+                        ids = Arrays.copyOf(ids, depth * 2);
+                        his = Arrays.copyOf(his, depth * 2);
+                        bounded = Arrays.copyOf(bounded, depth * 2);
+                        ahead = Arrays.copyOf(ahead, depth * 2);
+                    }
+                    ids[depth] = child;
+                    his[depth] = childHi;
+                    bounded[depth] = childBounded;
+                    ahead[depth] = p;
+                    depth++;
+                }
+                releaseRead(node);
+            }
+            return hits;
+        }
+
+        // every pair in key order, for compact
+        PairList pairs() throws IOException {
+            PairList pairs = new PairList();
+            Cursor c = cursor(0, -1L);
+            long[] keys = new long[CSV_BATCH_PAIRS];
+            long[] values = new long[CSV_BATCH_PAIRS];
+            for (int n; (n = c.next(keys, values, keys.length)) > 0; ) {
+                for (int i = 0; i < n; i++) pairs.add(keys[i], values[i]);
+            }
+            return pairs;
+        }
+
+        // Ordered iteration over keys in [lowKey, highKey] (inclusive, unsigned).
+        // Buffered inserts are merged first.
+        Cursor cursor(long lowKey, long highKey) throws IOException {
+            mergeWriteBuffer();
+            return new Cursor(lowKey, highKey);
+        }
+
+        // In-order cursor driven by an explicit stack of (block id, next key
+        // index) frames. The constructor seeks to the lower bound in one
+        // root-to-leaf descent; next() then advances one pair at a time. No pins
+        // or latches are held between calls, each step re-fetches its frame from
+        // the pool. A cursor is not a snapshot: if a split happens while it is
+        // open, it re-seeks just past the last key it returned, and if a frame's
+        // node gained keys (a leaf insert), its index is found again by key.
+        // In a B+tree the stack is just the current leaf, followed by its
+        // next-leaf link once it runs out.
+        final class Cursor implements PairCursor {
+            private final long lowKey;
+            private final long highKey;
+            private long[] ids = new long[16];
+            private int[] pos = new int[16];
+            private int[] counts = new int[16];   // frame node's numKeys when pos was set
+            private int depth = 0;
+            private long version;
+            private boolean started = false;
+            private long key;
+            private long value;
+            private LeafReadahead readahead;   // B+tree, once the leaf chain is followed
+
+            private Cursor(long lowKey, long highKey) throws IOException {
+                this.lowKey = lowKey;
+                this.highKey = highKey;
+                seek(lowKey, false);
+            }
+
+            // rebuild the stack for the first key >= from (> from if exclusive)
+            private void seek(long from, boolean exclusive) throws IOException {
+                depth = 0;
+                rootLatch.readLock().lock();
+                Node n;
+                try {
+                    if (rootBlockId == NO_BLOCK) return;
+                    n = readLatched(rootBlockId);
+                } finally {
+                    rootLatch.readLock().unlock();
+                }
+                version = structureVersion.get();
+                while (true) {
+                    int i = exclusive ? upperBound(n.keys, n.numKeys, from) : lowerBound(n.keys, n.numKeys, from);
+                    if (!bplus || n.leaf) push(n.blockId, i, n.numKeys);
+                    long child = n.children[i];
+                    if (child == NO_BLOCK) break;
+                    Node c = readLatched(child);
+                    releaseRead(n);
+                    n = c;
+                }
+                releaseRead(n);
+            }
+
+            private void push(long id, int i, int count) {
+                if (depth == ids.length) {
+                    ids = Arrays.copyOf(ids, depth * 2);
+                    pos = Arrays.copyOf(pos, depth * 2);
+                    counts = Arrays.copyOf(counts, depth * 2);
+                }
+                ids[depth] = id;
+                pos[depth] = i;
+                counts[depth] = count;
+                depth++;
+            }
+
+            // advance to the next pair; false once past highKey or the last key
+            public boolean next() throws IOException {
+                while (depth > 0) {
+                    Node n = readLatched(ids[depth - 1]);
+                    if (structureVersion.get() != version) {
+                        // a split may have moved keys out from under the stack
+                        releaseRead(n);
+                        if (started) seek(key, true);
+                        else seek(lowKey, false);
+                        continue;
+                    }
+                    int i = pos[depth - 1];
+                    if (counts[depth - 1] >= 0 && n.numKeys != counts[depth - 1]) {
+                        // inserts shifted keys under the saved index
+                        i = started ? upperBound(n.keys, n.numKeys, key) : lowerBound(n.keys, n.numKeys, lowKey);
+                    }
+                    counts[depth - 1] = n.numKeys;
+                    if (i >= n.numKeys && bplus && n.next != NO_BLOCK) {
+                        // all of the next leaf is still ahead of the cursor
+                        if (readahead == null) readahead = new LeafReadahead(NO_BLOCK, highKey);
+                        readahead.reached(n.next);
+                        ids[depth - 1] = n.next;
+                        pos[depth - 1] = 0;
+                        counts[depth - 1] = -1;
+                        releaseRead(n);
+                        continue;
+                    }
+                    if (i >= n.numKeys) {
+                        releaseRead(n);
+                        depth--;
+                        continue;
+                    }
+                    long k = n.keys[i];
+                    long v = n.values[i];
+                    long right = n.children[i + 1];
+                    // the children after the one about to be walked start loading
+                    if (right != NO_BLOCK) prefetchChildren(n, i + 2, i + 1 + prefetchPages, highKey);
+                    releaseRead(n);
+                    if (Long.compareUnsigned(k, highKey) > 0) {
+                        depth = 0;
+                        return false;
+                    }
+                    pos[depth - 1] = i + 1;
+                    // keys of the right subtree come before key i+1: descend to its leftmost leaf
+                    for (long id = right; id != NO_BLOCK; ) {
+                        Node c = readLatched(id);
+                        push(id, 0, c.numKeys);
+                        id = c.children[0];
+                        releaseRead(c);
+                    }
+                    key = k;
+                    value = v;
+                    started = true;
+                    return true;
+                }
+                return false;
+            }
+
+            // Up to max pairs into keys/values; returns how many (0 at the end).
+            // After each step the next pairs in order are the rest of the leaf on
+            // top of the stack, so they are copied under one latch.
+            int next(long[] keys, long[] values, int max) throws IOException {
+                int n = 0;
+                while (n < max && next()) {
+                    keys[n] = key;
+                    values[n++] = value;
+                    if (depth == 0) continue;
+                    Node leaf = readLatched(ids[depth - 1]);
+                    try {
+                        // otherwise next() sorts out what changed
+                        if (!isLeaf(leaf) || structureVersion.get() != version || leaf.numKeys != counts[depth - 1]) {
+                            continue;
+                        }
+                        int i = pos[depth - 1];
+                        while (i < leaf.numKeys && n < max && Long.compareUnsigned(leaf.keys[i], highKey) <= 0) {
+                            keys[n] = leaf.keys[i];
+                            values[n++] = leaf.values[i++];
+                        }
+                        pos[depth - 1] = i;
+                        key = keys[n - 1];
+                        value = values[n - 1];
+                    } finally {
+                        releaseRead(leaf);
+                    }
+                }
+                return n;
+            }
+
+            public long key() { return key; }
+            public long value() { return value; }
+        }
+
+        // stats command: shape and fill of the tree, gathered in one depth-first
+        // pass. The shared root latch only keeps the root from being replaced;
+        // inserts running meanwhile may or may not be counted, so the figures
+        // are not a snapshot. Fill is keys per node over the key capacity, or
+        // for compressed nodes encoded bytes over the block size.
+        void printTreeStats(PrintStream out) throws IOException {
+            mergeWriteBuffer();
+            long nodes = 0, leaves = 0, keys = 0;
+            double leafFill = 0, innerFill = 0;
+            int height = 0;
+            rootLatch.readLock().lock();
+            try {
+                ArrayDeque<long[]> stack = new ArrayDeque<>();   // {blockId, depth}
+                if (rootBlockId != NO_BLOCK) stack.push(new long[]{rootBlockId, 1});
+                while (!stack.isEmpty()) {
+                    long[] top = stack.pop();
+                    Node n = readLatched(top[0]);
+                    try {
+                        double fill = compressed ? (double) packedSize(n) / blockSize : (double) n.numKeys / maxKeys;
+                        nodes++;
+                        keys += n.numKeys;
+                        height = Math.max(height, (int) top[1]);
+                        if (n.leaf) {
+                            leaves++;
+                            leafFill += fill;
+                        } else {
+                            innerFill += fill;
+                            for (int i = n.numKeys; i >= 0; i--) stack.push(new long[]{n.children[i], top[1] + 1});
+                        }
+                    } finally {
+                        releaseRead(n);
+                    }
+                }
+            } finally {
+                rootLatch.readLock().unlock();
+            }
+            long inner = nodes - leaves;
+            long allocated;
+            synchronized (headerLock) {
+                allocated = nextBlockId - 1;
+            }
+            out.println("file size: " + chan.size() + " bytes (" + blockSize + "-byte blocks, " + allocated
+                    + " allocated)");
+            out.println("format: version " + formatVersion + ", degree " + degree + ", max keys " + maxKeys
+                    + (compressed ? ", compressed" : "") + (bplus ? ", B+tree" : ""));
+            out.println("height: " + height);
+            out.println("nodes: " + nodes + " (" + leaves + " leaves, " + inner + " internal); "
+                    + (allocated - nodes) + " allocated blocks unreachable");
+            // B+tree separators are copies, so keys double-counts them
+            out.println((bplus ? "keys (incl. separators): " : "keys: ") + keys);
+            out.printf("average fill: %.3f (leaves %.3f, internal %.3f)%n",
+                    nodes == 0 ? 0.0 : (leafFill + innerFill) / nodes,
+                    leaves == 0 ? 0.0 : leafFill / leaves, inner == 0 ? 0.0 : innerFill / inner);
+            BloomFilter f = bloom;
+            if (f == null) {
+                out.println("bloom filter: none");
+            } else {
+                double fill = f.fill();
+                out.printf("bloom filter: %d bits, %d hashes, fill %.3f (about %d keys, %.2f%% false positives)%n",
+                        1L << f.logBits, f.hashes, fill, f.estimatedKeys(fill), 100 * Math.pow(fill, f.hashes));
+            }
+        }
+
+        // Replace the Bloom filter (creating <index>.bloom if there is none)
+        // with one holding every key in the index, sized for keys (< 0: count
+        // them first). Returns the number of keys added. Writers must be kept out.
+        long rebuildBloom(long keys, int bitsPerKey) throws IOException {
+            if (keys < 0) {
+                keys = 0;
+                Cursor c = cursor(0, -1L);
+                while (c.next()) keys++;
+            }
+            BloomFilter f = new BloomFilter(BloomFilter.filterPath(indexPath), keys, bitsPerKey, options.sync,
+                    metrics.forces);
+            long added = 0;
+            Cursor c = cursor(0, -1L);
+            while (c.next()) {
+                f.add(c.key());
+                added++;
+            }
+            f.save();
+            bloom = f;
+            return added;
+        }
+
+        // print inorder traversal
+        void printAll() throws IOException {
+            WritableByteChannel out = Channels.newChannel(System.out);
+            writeAllInOrder(out, Paths.get(System.getProperty("java.io.tmpdir")));
+            System.out.flush();
+        }
+
+        void extractCsv(String outFilename) throws IOException {
+            Path p = Paths.get(outFilename);
+            if (Files.exists(p)) {
+                System.err.println("Error: output file already exists");
+                System.exit(1);
+            }
+            Path dir = p.toAbsolutePath().getParent();
+            try (FileChannel out = FileChannel.open(p, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                writeAllInOrder(out, dir);
+            }
+        }
+
+        // Write every pair as "key,value" lines in key order. Holding the root's
+        // read latch for the whole dump keeps out every writer that descends
+        // from the root, but not the append fast path (tryAppend), which goes
+        // straight to the rightmost leaf: pairs appended during the dump may or
+        // may not be in it, always after the rest, so the output is in order but
+        // not a snapshot. With more than one thread, the top of the tree is
+        // expanded into an ordered list of segments, each a single pair or a
+        // whole subtree, until there are a few subtrees per worker. Subtrees are
+        // formatted on a ForkJoinPool, each worker into its own partition file
+        // in tmpDir through its own byte buffer; partitions and single pairs are
+        // then concatenated in order, so the bytes match the sequential walk.
+        private void writeAllInOrder(WritableByteChannel out, Path tmpDir) throws IOException {
+            mergeWriteBuffer();
+            Node root = latchRoot();
+            if (root == null) return;
+            PairFormatter main = new PairFormatter(out);
+            try {
+                if (options.threads <= 1 || isLeaf(root)) {
+                    if (bplus) streamLeaves(firstLeaf(root.blockId), NO_BLOCK, main);
+                    else traverseInto(readLatched(root.blockId), main);
+                    main.flush();
+                    return;
+                }
+                // segments in output order: a block id for a subtree, or NO_BLOCK for a pair
+                List<long[]> segments = new ArrayList<>();
+                segments.add(new long[] {root.blockId, 0, 0});
+                int subtrees = 1;
+                boolean expanded = true;
+                while (expanded && subtrees < options.threads * SEGMENTS_PER_THREAD) {
+                    expanded = false;
+                    List<long[]> next = new ArrayList<>();
+                    subtrees = 0;
+                    for (long[] seg : segments) {
+                        Node n = seg[0] == NO_BLOCK ? null : readLatched(seg[0]);
+                        if (n == null || isLeaf(n)) {
+                            next.add(seg);
+                            if (n != null) subtrees++;
+                        } else {
+                            for (int i = 0; i < n.numKeys; i++) {
+                                next.add(new long[] {n.children[i], 0, 0});
+                                next.add(new long[] {NO_BLOCK, n.keys[i], n.values[i]});
+                            }
+                            next.add(new long[] {n.children[n.numKeys], 0, 0});
+                            subtrees += n.numKeys + 1;
+                            expanded = true;
+                        }
+                        if (n != null) releaseRead(n);
+                    }
+                    segments = next;
+                }
+
+                // B+tree: each subtree is the run of leaves up to the next subtree's
+                // first leaf, and the separators between subtrees are only copies
+                List<Long> firstLeaves = new ArrayList<>();
+                if (bplus) {
+                    for (long[] seg : segments) {
+                        if (seg[0] != NO_BLOCK) firstLeaves.add(firstLeaf(seg[0]));
+                    }
+                    firstLeaves.add(NO_BLOCK);
+                }
+
+                ForkJoinPool workers = new ForkJoinPool(options.threads);
+                List<Path> parts = new ArrayList<>();
+                List<ForkJoinTask<?>> tasks = new ArrayList<>();
+                try {
+                    for (long[] seg : segments) {
+                        if (seg[0] == NO_BLOCK) continue;
+                        Path part = Files.createTempFile(tmpDir, "extract-", ".part");
+                        int k = parts.size();
+                        parts.add(part);
+                        long blockId = seg[0];
+                        tasks.add(workers.submit(() -> {
+                            try (FileChannel ch = FileChannel.open(part, StandardOpenOption.WRITE)) {
+                                PairFormatter f = new PairFormatter(ch);
+                                if (bplus) streamLeaves(firstLeaves.get(k), firstLeaves.get(k + 1), f);
+                                else traverseInto(readLatched(blockId), f);
+                                f.flush();
+                            }
+                            return null;
+                        }));
+                    }
+                    int p = 0;
+                    for (long[] seg : segments) {
+                        if (seg[0] == NO_BLOCK) {
+                            if (!bplus) main.append(seg[1], seg[2]);
+                            continue;
+                        }
+                        try {
+                            tasks.get(p).get();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("extract interrupted");
+                        } catch (ExecutionException e) {
+                            Throwable c = e.getCause();
+                            if (c instanceof IOException) throw (IOException) c;
+                            throw new IOException("extract worker failed", c);
+                        }
+                        main.flush();
+                        try (FileChannel ch = FileChannel.open(parts.get(p), StandardOpenOption.READ)) {
+                            long size = ch.size();
+                            for (long done = 0; done < size; ) done += ch.transferTo(done, size - done, out);
+                        }
+                        p++;
+                    }
+                    main.flush();
+                } finally {
+                    workers.shutdownNow();
+                    for (Path part : parts) Files.deleteIfExists(part);
+                }
+            } finally {
+                releaseRead(root);
+            }
+        }
+
+        // read-latched root, or null for an empty tree
+        private Node latchRoot() throws IOException {
+            rootLatch.readLock().lock();
+            try {
+                return rootBlockId == NO_BLOCK ? null : readLatched(rootBlockId);
+            } finally {
+                rootLatch.readLock().unlock();
+            }
+        }
+
+        // leftmost leaf below blockId. The caller's read latch on the root keeps
+        // it in place: only a split moves it, and splits descend from the root
+        // (appends never split)
+        private long firstLeaf(long blockId) throws IOException {
+            while (true) {
+                Node n = readLatched(blockId);
+                long child = n.leaf ? NO_BLOCK : n.children[0];
+                releaseRead(n);
+                if (child == NO_BLOCK) return blockId;
+                blockId = child;
+            }
+        }
+
+        // Start reading a block into the pool on a prefetch thread, unless it is
+        // cached or already on its way. Only a hint: a full queue drops it, so
+        // does a reader loading the block first (it may be evicted again by the
+        // time the task runs), and a failed read is left for the reader that
+        // needs the page to hit. The threads are never interrupted, since that
+        // would close the channel.
+        private void prefetch(long blockId) {
+            if (blockId == NO_BLOCK || pool.contains(blockId) || !prefetching.add(blockId)) return;
+            boolean queued = submitPrefetch(() -> {
+                try {
+                    if (prefetching.contains(blockId) && !pool.contains(blockId)) {
+                        Node n = readNode(blockId);
+                        pool.prefetched(n);
+                        unpin(n);
+                        metrics.prefetched.increment();
+                    }
+                } catch (IOException e) {
+                    // see above
+                } finally {
+                    prefetching.remove(blockId);
+                }
+            });
+            if (!queued) prefetching.remove(blockId);
+        }
+
+        // children from..to (inclusive) of a latched internal node whose
+        // subtrees hold keys up to highKey
+        private void prefetchChildren(Node n, int from, int to, long highKey) {
+            if (prefetchPages == 0) return;
+            for (int i = from; i <= Math.min(to, n.numKeys); i++) {
+                if (i > 0 && Long.compareUnsigned(n.keys[i - 1], highKey) >= 0) break;
+                prefetch(n.children[i]);
+            }
+        }
+
+        private boolean submitPrefetch(Runnable task) {
+            ThreadPoolExecutor p = prefetcher;
+            if (p == null) {
+                synchronized (prefetching) {
+                    if (prefetcher == null) {
+                        prefetcher = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 0, TimeUnit.MILLISECONDS,
+                                new ArrayBlockingQueue<>(PREFETCH_QUEUE), r -> {
+                                    Thread t = new Thread(r, "prefetch");
+                                    t.setDaemon(true);
+                                    return t;
+                                });
+                    }
+                    p = prefetcher;
+                }
+            }
+            try {
+                p.execute(task);
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+
+        // Readahead along a B+tree leaf chain. A leaf's successor is only known
+        // once the leaf is read, so one task at a time walks the chain until it
+        // is prefetchPages leaves past the reader, stopping at the stop leaf or
+        // a leaf starting past highKey. The reader reports each leaf it moves
+        // on to; if it catches up, the walk restarts from the reader's leaf.
+        final class LeafReadahead implements Runnable {
+            private final long stop;
+            private final long highKey;
+            private final AtomicBoolean running = new AtomicBoolean();
+            private final AtomicInteger ahead = new AtomicInteger();   // leaves read the reader hasn't reached
+            private final AtomicLong restart = new AtomicLong(NO_BLOCK);
+            private long frontier = NO_BLOCK;   // next leaf to read; owned by the running task
+
+            LeafReadahead(long stop, long highKey) {
+                this.stop = stop;
+                this.highKey = highKey;
+            }
+
+            // the reader is moving to leaf id
+            void reached(long id) {
+                if (prefetchPages == 0) return;
+                int left = ahead.get() > 0 ? ahead.decrementAndGet() : 0;
+                if (left == 0) restart.set(id);
+                if (left <= prefetchPages / 2 && running.compareAndSet(false, true) && !submitPrefetch(this)) {
+                    running.set(false);
+                }
+            }
+
+            public void run() {
+                try {
+                    while (ahead.get() < prefetchPages) {
+                        long r = restart.getAndSet(NO_BLOCK);
+                        if (r != NO_BLOCK) {
+                            // the reader is reading r itself
+                            Node n = readLatched(r);
+                            frontier = n.next;
+                            releaseRead(n);
+                        }
+                        if (frontier == NO_BLOCK || frontier == stop) break;
+                        boolean cached = pool.contains(frontier);
+                        Node n = readLatched(frontier);
+                        long next = n.next;
+                        boolean past = n.numKeys > 0 && Long.compareUnsigned(n.keys[0], highKey) > 0;
+                        if (!cached) {
+                            pool.prefetched(n);
+                            metrics.prefetched.increment();
+                        }
+                        releaseRead(n);
+                        if (past) {
+                            frontier = NO_BLOCK;
+                            break;
+                        }
+                        frontier = next;
+                        ahead.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    frontier = NO_BLOCK;   // the reader will hit it
+                } finally {
+                    running.set(false);
+                }
+            }
+        }
+
+        // B+tree: write the pairs of the leaf chain from first up to (not
+        // including) stop, one leaf at a time, reading ahead along the chain
+        private void streamLeaves(long first, long stop, PairFormatter out) throws IOException {
+            LeafReadahead readahead = new LeafReadahead(stop, -1L);
+            for (long id = first; id != NO_BLOCK && id != stop; ) {
+                readahead.reached(id);
+                Node leaf = readLatched(id);
+                try {
+                    for (int i = 0; i < leaf.numKeys; i++) out.append(leaf.keys[i], leaf.values[i]);
+                    id = leaf.next;
+                } finally {
+                    releaseRead(leaf);
+                }
+            }
+        }
+
+        // n is read-latched by the caller and released here. Latches stay held
+        // down the recursion path, so no split can reshape the subtree mid-walk.
+        // While child i is walked, the next prefetchPages children are loading.
+        private void traverseInto(Node n, PairFormatter out) throws IOException {
+            try {
+                for (int i = 0; i < n.numKeys; i++) {
+                    long leftChild = n.children[i];
+                    if (leftChild != NO_BLOCK) {
+                        prefetchChildren(n, i == 0 ? 1 : i + prefetchPages, i + prefetchPages, -1L);
+                        traverseInto(readLatched(leftChild), out);
+                    }
+                    out.append(n.keys[i], n.values[i]);
+                }
+                long right = n.children[n.numKeys];
+                if (right != NO_BLOCK) traverseInto(readLatched(right), out);
+            } finally {
+                releaseRead(n);
+            }
+        }
+
+        // Closeable: commit outstanding writes, then drop the pool and channel
+        @Override
+        public void close() throws IOException {
+            ThreadPoolExecutor p = prefetcher;
+            if (p != null) {
+                // queued reads are dropped; the ones in flight finish before the channel closes
+                p.getQueue().clear();
+                p.shutdown();
+                try {
+                    p.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            mergeWriteBuffer();
+            commit();
+            // the filter is saved only once the index is durable; one grown
+            // past its design fill is rebuilt at twice its estimated key count
+            BloomFilter f = bloom;
+            if (f != null && f.inUse) {
+                double fill = f.fill();
+                if (fill > BLOOM_MAX_FILL) rebuildBloom(f.estimatedKeys(fill), options.bloomBits);
+                else f.save();
+            }
+            if (wal != null) {
+                // everything logged has been merged
+                wal.close();
+                wal.delete();
+            }
+            pool.flushAll();
+            chan.close();
             raf.close();
+            if (options.stats) {
+                metrics.print(System.err);
+                if (mbean != null) {
+                    try {
+                        ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbean);
+                    } catch (JMException e) {
+                        // already gone
+                    }
+                }
+            }
         }
     }
 
-    // Node representation in-memory
+    // Node representation in-memory. Node objects are owned by the buffer pool
+    // and recycled for other blocks once evicted.
     static class Node {
-        final long blockId;
+        long blockId;
         long parent = NO_BLOCK;
         int numKeys = 0;
-        final long[] keys = new long[MAX_KEYS];
-        final long[] values = new long[MAX_KEYS];
-        final long[] children = new long[MAX_CHILDREN];
-        private boolean dirty = false;
+        boolean leaf = true;
+        long next = NO_BLOCK;   // B+tree leaves: next leaf in key order
+        final long[] keys;
+        final long[] values;
+        final long[] children;
+        private volatile boolean dirty = false;
+        int frame = -1;   // buffer pool frame while cached
+        // page latch: readers share it, writers take it exclusively; only held while pinned
+        final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+
+        static final Comparator<Node> BY_BLOCK_ID = Comparator.comparingLong(n -> n.blockId);
+
+        Node(long blockId, int maxKeys) {
+            this.blockId = blockId;   // arrays start zeroed; NO_BLOCK == 0
+            this.keys = new long[maxKeys];
+            this.values = new long[maxKeys];
+            this.children = new long[maxKeys + 1];
+        }
 
-        Node(long blockId) {
-            this.blockId = blockId;
+        // reset to an empty node, for a freshly allocated block
+        void clear() {
+            parent = NO_BLOCK;
+            numKeys = 0;
+            leaf = true;
+            next = NO_BLOCK;
             Arrays.fill(keys, 0L);
             Arrays.fill(values, 0L);
             Arrays.fill(children, NO_BLOCK);
@@ -537,46 +4118,855 @@ public class Project3 {
         }
     }
 
-    // Small LRU cache for nodes: when evicting, flush node to disk (if dirty).
-    static class NodeCache {
+    // Flyweight over an encoded node block: fields are read in place from the
+    // page bytes at base. One view per thread is re-pointed at each block.
+    static final class NodeView {
+        private final int valuesOffset;
+        private final int childrenOffset;
+        private ByteBuffer buf;
+        private int base;
+
+        NodeView(int maxKeys) {
+            valuesOffset = NODE_HEADER_BYTES + 8 * maxKeys;
+            childrenOffset = NODE_HEADER_BYTES + 16 * maxKeys;
+        }
+
+        NodeView wrap(ByteBuffer buf, int base) {
+            this.buf = buf;
+            this.base = base;
+            return this;
+        }
+
+        long id() { return buf.getLong(base); }
+        int numKeys() { return buf.getInt(base + 20); }
+        boolean leaf() { return (buf.getInt(base + 16) & NODE_LEAF) != 0; }
+        long key(int i) { return buf.getLong(base + NODE_HEADER_BYTES + 8 * i); }
+        long value(int i) { return buf.getLong(base + valuesOffset + 8 * i); }
+        long child(int i) { return buf.getLong(base + childrenOffset + 8 * i); }
+
+        // binary searches over the keys in place, as BTree.lowerBound/upperBound
+        int lowerBound(long key) {
+            int lo = 0, hi = numKeys();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (Long.compareUnsigned(key(mid), key) < 0) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        int upperBound(long key) {
+            int lo = 0, hi = numKeys();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (Long.compareUnsigned(key(mid), key) <= 0) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    // Formats "key,value" lines (unsigned decimal) into a reusable byte buffer
+    // and writes it to a channel whenever it fills up; no String per pair.
+    static final class PairFormatter {
+        private static final byte[] NEWLINE = System.lineSeparator().getBytes();
+        private final WritableByteChannel out;
+        private final ByteBuffer buf = ByteBuffer.allocate(FORMAT_BUFFER_BYTES);
+        private final byte[] digits = new byte[20];
+
+        PairFormatter(WritableByteChannel out) {
+            this.out = out;
+        }
+
+        void append(long key, long value) throws IOException {
+            if (buf.remaining() < 2 * digits.length + 1 + NEWLINE.length) flush();
+            putUnsigned(key);
+            buf.put((byte) ',');
+            putUnsigned(value);
+            buf.put(NEWLINE);
+        }
+
+        private void putUnsigned(long v) {
+            int i = digits.length;
+            if (v < 0) {
+                // top bit set: peel off the last digit with an unsigned divide
+                long q = (v >>> 1) / 5;
+                digits[--i] = (byte) ('0' + (v - q * 10));
+                v = q;
+            }
+            do {
+                digits[--i] = (byte) ('0' + v % 10);
+                v /= 10;
+            } while (v != 0);
+            buf.put(digits, i, digits.length - i);
+        }
+
+        void flush() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) out.write(buf);
+            buf.clear();
+        }
+    }
+
+    // load --sort: an external merge sort of the CSV rows, so the tree takes
+    // them in key order. Rows fill run buffers sized from the memory budget;
+    // a full buffer is radix sorted and written to a temporary run file on a
+    // worker thread while the next one fills, so runs sort in parallel. The
+    // runs are merged through a MergedCursor, in passes of SORT_MERGE_WAYS
+    // runs while there are more. Equal keys keep their input order, so the
+    // rows of a repeated key reach the tree in the order an unsorted load
+    // inserts them. The last buffer joins the merge from memory: input that
+    // fits one is never spilled.
+    static final class ExternalSort implements PairSink {
+        private final Path dir;
+        private final int capacity;   // pairs per run buffer, a power of two
+        private final int buffers;
+        private final ExecutorService sorters;
+        private final BlockingQueue<PairList> free;
+        private final List<Future<Path>> spilled = new ArrayList<>();   // in input order
+        private final List<Path> files = new ArrayList<>();   // every run file made, guarded by itself
+        private volatile IOException spillFailure;
+        private int allocated = 0;
+        private PairList filling;
+
+        ExternalSort(Path dir, long memoryBytes, int threads) {
+            this.dir = dir;
+            // one buffer filling while the others sort, each needing its size
+            // again as radix sort scratch
+            this.buffers = threads + 1;
+            long pairs = Math.max(SORT_MIN_RUN_PAIRS, memoryBytes / (32L * buffers));
+            this.capacity = Integer.highestOneBit((int) Math.min(pairs, 1 << 28));
+            this.sorters = Executors.newFixedThreadPool(threads);
+            this.free = new ArrayBlockingQueue<>(buffers);
+        }
+
+        // Every row of csvIn, passed to sink in unsigned key order. As in an
+        // unsorted load, the rows before a bad one are still loaded before
+        // its error is rethrown.
+        static void forEachSorted(String csvIn, Path dir, BTree.Options options, PairSink sink) throws IOException {
+            ExternalSort sort = new ExternalSort(dir, options.sortMemoryBytes(), options.threads);
+            Exception failure = null;
+            try {
+                forEachCsvPair(csvIn, sort);
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+            }
+            sort.mergeInto(sink);
+            if (failure instanceof IOException) throw (IOException) failure;
+            if (failure != null) throw (RuntimeException) failure;
+        }
+
+        public void accept(long key, long value) throws IOException {
+            if (filling == null) {
+                if (spillFailure != null) throw spillFailure;
+                filling = takeBuffer();
+            }
+            filling.add(key, value);
+            if (filling.size() == capacity) {
+                PairList full = filling;
+                filling = null;
+                spilled.add(sorters.submit(() -> spill(full)));
+            }
+        }
+
+        // buffers are allocated as needed (a small input never needs more than
+        // one), then recycled
+        private PairList takeBuffer() throws IOException {
+            PairList b = free.poll();
+            if (b != null) return b;
+            if (allocated < buffers) {
+                allocated++;
+                return new PairList();
+            }
+            try {
+                return free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("load interrupted");
+            }
+        }
+
+        private Path spill(PairList b) throws IOException {
+            try {
+                b.sortUnsigned();
+                Path run = newRun();
+                try (RunWriter w = new RunWriter(run)) {
+                    for (int i = 0; i < b.size(); i++) w.accept(b.keys[i], b.values[i]);
+                }
+                return run;
+            } catch (IOException e) {
+                spillFailure = e;
+                throw e;
+            } finally {
+                b.clear();
+                free.add(b);
+            }
+        }
+
+        private Path newRun() throws IOException {
+            Path run = Files.createTempFile(dir, "load", ".run");
+            synchronized (files) {
+                files.add(run);
+            }
+            return run;
+        }
+
+        // Merge all rows accepted into sink. The run files are deleted
+        // afterwards, whether or not it succeeds.
+        void mergeInto(PairSink sink) throws IOException {
+            List<RunReader> open = new ArrayList<>();
+            try {
+                List<Path> runs = new ArrayList<>();
+                for (Future<Path> f : spilled) runs.add(await(f));
+                // the last merge also takes the buffer still in memory
+                while (runs.size() + 1 > SORT_MERGE_WAYS) {
+                    List<Path> merged = new ArrayList<>();
+                    for (int i = 0; i < runs.size(); i += SORT_MERGE_WAYS) {
+                        List<Path> group = runs.subList(i, Math.min(runs.size(), i + SORT_MERGE_WAYS));
+                        if (group.size() == 1) {
+                            merged.add(group.get(0));
+                            continue;
+                        }
+                        Path run = newRun();
+                        try (RunWriter w = new RunWriter(run)) {
+                            PairCursor c = merge(group, null, open);
+                            while (c.next()) w.accept(c.key(), c.value());
+                        }
+                        for (RunReader r : open) r.close();
+                        open.clear();
+                        for (Path done : group) Files.delete(done);
+                        merged.add(run);
+                    }
+                    runs = merged;
+                }
+                PairList last = filling;
+                if (last != null) last.sortUnsigned();
+                PairCursor c = merge(runs, last, open);
+                while (c.next()) sink.accept(c.key(), c.value());
+            } finally {
+                for (RunReader r : open) r.close();
+                sorters.shutdown();
+                try {
+                    sorters.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                synchronized (files) {
+                    for (Path f : files) Files.deleteIfExists(f);
+                }
+            }
+        }
+
+        private static PairCursor merge(List<Path> runs, PairList last, List<RunReader> open) throws IOException {
+            List<PairCursor> sources = new ArrayList<>();
+            for (Path run : runs) {
+                RunReader r = new RunReader(run);
+                open.add(r);
+                sources.add(r);
+            }
+            if (last != null) sources.add(new BufferReader(last));
+            return new MergedCursor(sources.toArray(new PairCursor[0]));
+        }
+
+        private static Path await(Future<Path> f) throws IOException {
+            try {
+                return f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("load interrupted");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw new IOException(cause);
+            }
+        }
+
+        // run file: big-endian key, value pairs, nothing else
+        private static final class RunWriter implements PairSink, Closeable {
+            private final FileChannel ch;
+            private final ByteBuffer buf = ByteBuffer.allocate(SORT_IO_BYTES);
+
+            RunWriter(Path run) throws IOException {
+                ch = FileChannel.open(run, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            }
+
+            public void accept(long key, long value) throws IOException {
+                if (buf.remaining() < 16) flush();
+                buf.putLong(key).putLong(value);
+            }
+
+            private void flush() throws IOException {
+                buf.flip();
+                while (buf.hasRemaining()) ch.write(buf);
+                buf.clear();
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    flush();
+                } finally {
+                    ch.close();
+                }
+            }
+        }
+
+        private static final class RunReader implements PairCursor, Closeable {
+            private final FileChannel ch;
+            private final ByteBuffer buf = ByteBuffer.allocate(SORT_IO_BYTES);
+            private long key;
+            private long value;
+
+            RunReader(Path run) throws IOException {
+                ch = FileChannel.open(run, StandardOpenOption.READ);
+                buf.flip();
+            }
+
+            public boolean next() throws IOException {
+                if (buf.remaining() < 16) {
+                    buf.compact();
+                    while (buf.hasRemaining()) {
+                        if (ch.read(buf) < 0) break;
+                    }
+                    buf.flip();
+                    if (buf.remaining() < 16) return false;
+                }
+                key = buf.getLong();
+                value = buf.getLong();
+                return true;
+            }
+
+            public long key() { return key; }
+            public long value() { return value; }
+
+            @Override
+            public void close() throws IOException {
+                ch.close();
+            }
+        }
+
+        private static final class BufferReader implements PairCursor {
+            private final PairList pairs;
+            private int next = 0;
+
+            BufferReader(PairList pairs) {
+                this.pairs = pairs;
+            }
+
+            public boolean next() {
+                return next++ < pairs.size();
+            }
+
+            public long key() { return pairs.keys[next - 1]; }
+            public long value() { return pairs.values[next - 1]; }
+        }
+    }
+
+    // k-way merge of sorted sources: a binary heap of source indexes ordered
+    // by each source's current key, equal keys going to the earlier source
+    static final class MergedCursor implements PairCursor {
+        private final PairCursor[] sources;
+        private final int[] heap;
+        private int size = -1;   // -1: not started
+        private long key;
+        private long value;
+
+        MergedCursor(PairCursor[] sources) {
+            this.sources = sources;
+            this.heap = new int[sources.length];
+        }
+
+        public boolean next() throws IOException {
+            if (size < 0) {
+                size = 0;
+                for (int i = 0; i < sources.length; i++) {
+                    if (sources[i].next()) heap[size++] = i;
+                }
+                for (int i = size / 2 - 1; i >= 0; i--) siftDown(i);
+            } else if (size > 0) {
+                if (!sources[heap[0]].next()) heap[0] = heap[--size];
+                siftDown(0);
+            }
+            if (size <= 0) return false;
+            key = sources[heap[0]].key();
+            value = sources[heap[0]].value();
+            return true;
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int least = i, l = 2 * i + 1, r = l + 1;
+                if (l < size && less(heap[l], heap[least])) least = l;
+                if (r < size && less(heap[r], heap[least])) least = r;
+                if (least == i) return;
+                int t = heap[i];
+                heap[i] = heap[least];
+                heap[least] = t;
+                i = least;
+            }
+        }
+
+        private boolean less(int a, int b) {
+            int c = Long.compareUnsigned(sources[a].key(), sources[b].key());
+            return c < 0 || c == 0 && a < b;
+        }
+
+        public long key() { return key; }
+        public long value() { return value; }
+    }
+
+    // Growable parallel key/value arrays used to stage rows for bulk loading.
+    static class PairList {
+        long[] keys = new long[1024];
+        long[] values = new long[1024];
+        private int size = 0;
+
+        int size() { return size; }
+
+        void clear() { size = 0; }
+
+        PairList copy() {
+            PairList c = new PairList();
+            c.keys = Arrays.copyOf(keys, Math.max(size, 1));
+            c.values = Arrays.copyOf(values, Math.max(size, 1));
+            c.size = size;
+            return c;
+        }
+
+        void add(long key, long value) {
+            if (size == keys.length) {
+                int cap = keys.length * 2;
+                keys = Arrays.copyOf(keys, cap);
+                values = Arrays.copyOf(values, cap);
+            }
+            keys[size] = key;
+            values[size] = value;
+            size++;
+        }
+
+        boolean isSortedUnsigned() {
+            for (int i = 1; i < size; i++) {
+                if (Long.compareUnsigned(keys[i - 1], keys[i]) > 0) return false;
+            }
+            return true;
+        }
+
+        // stable LSD radix sort on the unsigned key, 16 bits per pass;
+        // duplicates keep their input order
+        void sortUnsigned() {
+            if (size < 2) return;
+            long[] k = keys, v = values;
+            long[] tk = new long[size], tv = new long[size];
+            int[] count = new int[1 << 16];
+            for (int shift = 0; shift < 64; shift += 16) {
+                Arrays.fill(count, 0);
+                for (int i = 0; i < size; i++) count[(int) (k[i] >>> shift) & 0xFFFF]++;
+                if (count[(int) (k[0] >>> shift) & 0xFFFF] == size) continue; // digit is constant
+                int sum = 0;
+                for (int d = 0; d < count.length; d++) {
+                    int c = count[d];
+                    count[d] = sum;
+                    sum += c;
+                }
+                for (int i = 0; i < size; i++) {
+                    int d = (int) (k[i] >>> shift) & 0xFFFF;
+                    tk[count[d]] = k[i];
+                    tv[count[d]] = v[i];
+                    count[d]++;
+                }
+                long[] t = k; k = tk; tk = t;
+                t = v; v = tv; tv = t;
+            }
+            keys = k;
+            values = v;
+        }
+    }
+
+    // Runtime counters for one open BTree. Counters are LongAdders, cheap
+    // enough to stay on; the latency histograms (System.nanoTime around each
+    // operation) are only kept with --stats, which also registers this as the
+    // MBean Project3:type=BTree,file=<name> for jconsole and friends.
+    public interface MetricsMBean {
+        long getPoolHits();
+        long getPoolMisses();
+        long getBlocksRead();
+        long getBlocksWritten();
+        long getWriteCalls();
+        long getForces();
+        long getSplits();
+        long getAppends();
+        long getBloomNegatives();
+        long getPrefetched();
+        long getInserts();
+        long getLookups();
+        long getInsertP50Nanos();
+        long getInsertP99Nanos();
+        long getLookupP50Nanos();
+        long getLookupP99Nanos();
+        long getCommitP99Nanos();
+    }
+
+    static final class Metrics implements MetricsMBean {
+        final boolean timing;
+        final LongAdder poolHits = new LongAdder();
+        final LongAdder poolMisses = new LongAdder();   // includes --mmap reads outside the pool
+        final LongAdder blocksRead = new LongAdder();
+        final LongAdder blocksWritten = new LongAdder();
+        final LongAdder writeCalls = new LongAdder();
+        final LongAdder forces = new LongAdder();
+        final LongAdder splits = new LongAdder();
+        final LongAdder appends = new LongAdder();   // inserts that took the append fast path
+        final LongAdder bloomNegatives = new LongAdder();   // lookups the Bloom filter answered
+        final LongAdder prefetched = new LongAdder();   // blocks read by the prefetch threads
+        final Histogram inserts = new Histogram();
+        final Histogram lookups = new Histogram();
+        final Histogram commits = new Histogram();
+
+        Metrics(boolean timing) {
+            this.timing = timing;
+        }
+
+        public long getPoolHits() { return poolHits.sum(); }
+        public long getPoolMisses() { return poolMisses.sum(); }
+        public long getBlocksRead() { return blocksRead.sum(); }
+        public long getBlocksWritten() { return blocksWritten.sum(); }
+        public long getWriteCalls() { return writeCalls.sum(); }
+        public long getForces() { return forces.sum(); }
+        public long getSplits() { return splits.sum(); }
+        public long getAppends() { return appends.sum(); }
+        public long getBloomNegatives() { return bloomNegatives.sum(); }
+        public long getPrefetched() { return prefetched.sum(); }
+        public long getInserts() { return inserts.count(); }
+        public long getLookups() { return lookups.count(); }
+        public long getInsertP50Nanos() { return inserts.percentile(0.50); }
+        public long getInsertP99Nanos() { return inserts.percentile(0.99); }
+        public long getLookupP50Nanos() { return lookups.percentile(0.50); }
+        public long getLookupP99Nanos() { return lookups.percentile(0.99); }
+        public long getCommitP99Nanos() { return commits.percentile(0.99); }
+
+        void print(PrintStream out) {
+            long hits = getPoolHits(), misses = getPoolMisses();
+            out.println("Stats:");
+            out.printf("  buffer pool: %d hits, %d misses (%.1f%% hit rate)%n",
+                    hits, misses, hits + misses == 0 ? 0.0 : 100.0 * hits / (hits + misses));
+            out.printf("  blocks: %d read (%d prefetched), %d written in %d writes; %d forces; %d splits; %d fast appends%n",
+                    getBlocksRead(), getPrefetched(), getBlocksWritten(), getWriteCalls(), getForces(), getSplits(), getAppends());
+            out.printf("  bloom filter: %d lookups answered without a page read%n", getBloomNegatives());
+            inserts.print(out, "insert");
+            lookups.print(out, "search");
+            commits.print(out, "commit");
+        }
+    }
+
+    // latency histogram with power-of-two nanosecond buckets; percentiles are
+    // reported as the upper bound of their bucket
+    static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+        }
+
+        void record(long nanos) {
+            buckets[64 - Long.numberOfLeadingZeros(Math.max(nanos, 1) - 1) & 63].increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        long count() {
+            long n = 0;
+            for (LongAdder b : buckets) n += b.sum();
+            return n;
+        }
+
+        long percentile(double p) {
+            long n = count();
+            if (n == 0) return 0;
+            long rank = (long) Math.ceil(p * n), seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i].sum();
+                if (seen >= rank) return Math.min(1L << i, max.get());
+            }
+            return max.get();
+        }
+
+        void print(PrintStream out, String name) {
+            long n = count();
+            if (n == 0) return;
+            out.printf("  %s: %d ops, mean %d ns, p50 <= %d ns, p99 <= %d ns, max %d ns%n",
+                    name, n, total.sum() / n, percentile(0.50), percentile(0.99), max.get());
+        }
+    }
+
+    // Fixed-size buffer pool of node frames with pin counts and CLOCK eviction.
+    // A page enters with its reference bit clear and only earns it on a later
+    // hit, so a one-pass scan recycles its own frames instead of pushing out the
+    // root and internal levels. Pinned pages are never evicted. Evicting a dirty
+    // page writes it back together with nearby unpinned dirty pages. While
+    // keepDirty is set, clean pages are evicted first and a dirty one only when
+    // no clean page can go.
+    static class BufferPool {
         private final int capacity;
-        private final LinkedHashMap<Long, Node> map;
         private final BTree btree;
+        private final Node[] frames;
+        private final int[] pins;
+        private final boolean[] referenced;
+        private final boolean[] unread;   // prefetched, not read yet
+        private final LongIntMap index;
+        private final List<Node> writeBackBatch = new ArrayList<>();
+        private int used = 0;   // frames handed out before the clock starts evicting
+        private int hand = 0;
+        private int waiters = 0;   // threads waiting for a frame to be unpinned
+        volatile boolean keepDirty = false;
 
-        NodeCache(int capacity, BTree btree) {
+        BufferPool(int capacity, BTree btree) {
             this.capacity = capacity;
             this.btree = btree;
-            this.map = new LinkedHashMap<Long, Node>(capacity, 0.75f, true) {
-                protected boolean removeEldestEntry(Map.Entry<Long, Node> eldest) {
-                    if (size() > NodeCache.this.capacity) {
-                        Node ev = eldest.getValue();
-                        try {
-                            // flush evicted node to disk if dirty
-                            btree.flushNode(ev);
-                        } catch (IOException e) {
-                            throw new UncheckedIOException(e);
+            this.frames = new Node[capacity];
+            this.pins = new int[capacity];
+            this.referenced = new boolean[capacity];
+            this.unread = new boolean[capacity];
+            this.index = new LongIntMap(capacity);
+        }
+
+        // whether a block is cached, without pinning it
+        synchronized boolean contains(long blockId) {
+            return index.get(blockId) >= 0;
+        }
+
+        // cached node, pinned; null on a miss
+        synchronized Node get(long blockId) {
+            int f = index.get(blockId);
+            if (f < 0) return null;
+            pins[f]++;
+            // a prefetched page's first read is the one it was loaded for
+            referenced[f] = !unread[f];
+            unread[f] = false;
+            return frames[f];
+        }
+
+        // A page loaded ahead of its reader gets a reference bit to survive one
+        // sweep until that read, which then counts as its first; otherwise a
+        // pool whose other pages have all been hit would evict it first.
+        synchronized void prefetched(Node n) {
+            unread[n.frame] = true;
+            referenced[n.frame] = true;
+        }
+
+        // Claim a frame for a block that is not cached yet and return its node,
+        // pinned and write-latched. The evicted frame's Node object is reused, so
+        // its contents are stale: the caller decodes into it or clears it, then
+        // releases the latch. Returns null if another thread cached the block first.
+        synchronized Node install(long blockId) throws IOException {
+            if (index.get(blockId) >= 0) return null;
+            int f = freeFrame();
+            Node n = frames[f];
+            if (n == null) {
+                n = new Node(blockId, btree.maxKeys);
+                frames[f] = n;
+            }
+            n.blockId = blockId;
+            n.setDirty(false);
+            n.frame = f;
+            pins[f] = 1;
+            referenced[f] = false;
+            unread[f] = false;
+            index.put(blockId, f);
+            n.latch.writeLock().lock();   // free: unpinned nodes are never latched
+            return n;
+        }
+
+        // drop a node claimed by install() whose block could not be read; the
+        // caller still holds its write latch, and unpins it once released.
+        // Threads already waiting on the latch see the cleared id and give up
+        synchronized void discard(Node n) {
+            index.remove(n.blockId);
+            n.blockId = NO_BLOCK;
+        }
+
+        synchronized void unpin(Node n) {
+            int f = n.frame;
+            if (f < 0 || frames[f] != n || pins[f] == 0) {
+                throw new IllegalStateException("unpin of node that is not pinned: " + n);
+            }
+            if (--pins[f] == 0 && waiters > 0) notifyAll();
+        }
+
+        private int freeFrame() throws IOException {
+            if (used < capacity) return used++;
+            for (int attempt = 0; ; attempt++) {
+                // two sweeps: the first may only clear reference bits. With
+                // keepDirty, a round passing over dirty pages comes first
+                for (int round = keepDirty ? 0 : 1; round < 2; round++) {
+                    for (int step = 0; step <= 2 * capacity; step++) {
+                        int f = hand;
+                        hand = (hand + 1) % capacity;
+                        if (pins[f] > 0) continue;
+                        if (referenced[f]) {
+                            referenced[f] = false;
+                            continue;
                         }
-                        return true;
-                    } else return false;
+                        Node victim = frames[f];
+                        if (victim.isDirty()) {
+                            if (round == 0) continue;
+                            writeBack(f);
+                        }
+                        if (victim.blockId != NO_BLOCK) index.remove(victim.blockId);
+                        return f;
+                    }
                 }
-            };
+                // everything is pinned: other threads may release pages shortly
+                if (attempt == POOL_WAIT_ATTEMPTS) break;
+                waiters++;
+                try {
+                    wait(POOL_WAIT_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } finally {
+                    waiters--;
+                }
+            }
+            throw new IOException("buffer pool exhausted: all " + capacity + " pages are pinned");
         }
 
-        synchronized Node get(long blockId) {
-            return map.get(blockId);
+        int capacity() { return capacity; }
+
+        // dirty pages cached now (a scan over the pool)
+        synchronized int dirtyPages() {
+            int n = 0;
+            for (int f = 0; f < used; f++) {
+                if (frames[f].blockId != NO_BLOCK && frames[f].isDirty()) n++;
+            }
+            return n;
+        }
+
+        // write the dirty victim plus unpinned dirty pages just ahead of it
+        private void writeBack(int victim) throws IOException {
+            List<Node> batch = writeBackBatch;
+            batch.clear();
+            for (int i = 0, f = victim; i < 4 * WRITEBACK_BATCH && batch.size() < WRITEBACK_BATCH; i++) {
+                Node n = frames[f];
+                if (n != null && pins[f] == 0 && n.isDirty()) batch.add(n);
+                f = (f + 1) % capacity;
+            }
+            btree.writeNodes(batch);
+            batch.clear();
         }
 
-        // put node into cache; if exists replace
-        synchronized void put(Node n) {
-            map.put(n.blockId, n);
+        // Write back all dirty pages in block order, keeping them cached. The
+        // pages are pinned under the pool lock but written outside it, since
+        // encoding has to wait for writers that hold their latches. They are
+        // pinned a few at a time (a quarter of the pool at most): pinning every
+        // dirty page at once could leave the writers this commit waits for
+        // with no frame to evict.
+        void flushDirty() throws IOException {
+            long[] ids = new long[16];
+            int count = 0;
+            synchronized (this) {
+                for (int f = 0; f < used; f++) {
+                    if (frames[f].blockId != NO_BLOCK && frames[f].isDirty()) {
+                        if (count == ids.length) ids = Arrays.copyOf(ids, count * 2);
+                        ids[count++] = frames[f].blockId;
+                    }
+                }
+            }
+            Arrays.sort(ids, 0, count);
+            int batch = Math.max(1, Math.min(WRITE_BATCH_BLOCKS, capacity / 4));
+            List<Node> dirty = new ArrayList<>();
+            for (int from = 0; from < count; from += batch) {
+                dirty.clear();
+                synchronized (this) {
+                    for (int i = from; i < Math.min(count, from + batch); i++) {
+                        // evicted (and so written back) since, or cached again
+                        int f = index.get(ids[i]);
+                        if (f >= 0 && frames[f].isDirty()) {
+                            pins[f]++;
+                            dirty.add(frames[f]);
+                        }
+                    }
+                }
+                try {
+                    btree.writeNodes(dirty);
+                } finally {
+                    for (Node n : dirty) unpin(n);
+                }
+            }
         }
 
         synchronized void flushAll() throws IOException {
-            for (Node n : map.values()) {
-                if (n.isDirty()) btree.flushNode(n);
+            flushDirty();
+            for (int f = 0; f < used; f++) {
+                frames[f].frame = -1;
+                frames[f] = null;
+                pins[f] = 0;
+            }
+            index.clear();
+            used = 0;
+            hand = 0;
+        }
+    }
+
+    // Open-addressing long -> int map used as the pool's page table, so page
+    // lookups don't box. Block ids are never NO_BLOCK (0), which marks a free
+    // slot. Sized once for the pool's capacity; it never resizes.
+    static class LongIntMap {
+        private final long[] keys;
+        private final int[] vals;
+        private final int mask;
+
+        LongIntMap(int maxEntries) {
+            int cap = Integer.highestOneBit(Math.max(8, maxEntries) * 2 - 1) << 1;
+            keys = new long[cap];
+            vals = new int[cap];
+            mask = cap - 1;
+        }
+
+        private int slot(long k) {
+            long h = k * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+
+        // value for k, or -1 if absent
+        int get(long k) {
+            for (int i = slot(k); keys[i] != NO_BLOCK; i = (i + 1) & mask) {
+                if (keys[i] == k) return vals[i];
+            }
+            return -1;
+        }
+
+        void put(long k, int v) {
+            int i = slot(k);
+            while (keys[i] != NO_BLOCK && keys[i] != k) i = (i + 1) & mask;
+            keys[i] = k;
+            vals[i] = v;
+        }
+
+        // linear-probing delete: shift later entries of the run back into the hole
+        void remove(long k) {
+            int i = slot(k);
+            while (keys[i] != k) {
+                if (keys[i] == NO_BLOCK) return;
+                i = (i + 1) & mask;
             }
-            // also clear map to avoid holding onto nodes after close
-            map.clear();
+            for (int j = (i + 1) & mask; keys[j] != NO_BLOCK; j = (j + 1) & mask) {
+                int h = slot(keys[j]);
+                boolean between = i <= j ? (i < h && h <= j) : (i < h || h <= j);
+                if (!between) {
+                    keys[i] = keys[j];
+                    vals[i] = vals[j];
+                    i = j;
+                }
+            }
+            keys[i] = NO_BLOCK;
+        }
+
+        void clear() {
+            Arrays.fill(keys, NO_BLOCK);
         }
     }
 }
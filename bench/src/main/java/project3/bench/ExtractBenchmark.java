@@ -0,0 +1,72 @@
+package project3.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** The extract command over an index built by single inserts in random order. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExtractBenchmark {
+
+    @Param({"1000000"})
+    public int rows;
+
+    @Param({"512", "4096"})
+    public int pageSize;
+
+    @Param({"64", "4096"})
+    public int cachePages;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private Path dir;
+    private Path idx;
+    private Path out;
+
+    @Setup(Level.Trial)
+    public void build() throws IOException {
+        dir = Files.createTempDirectory("p3-extract");
+        Path csv = dir.resolve("rows.csv");
+        Tree.writeCsv(csv, rows, true, 3);
+        idx = dir.resolve("bench.idx");
+        out = dir.resolve("out.csv");
+        try (Tree tree = Tree.open(idx, "page-size", Integer.toString(pageSize), "sync", "none")) {
+            tree.load(csv, false);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() throws IOException {
+        Tree.deleteTree(dir);
+    }
+
+    @Benchmark
+    public void extract() throws IOException {
+        // reopened each time: the cold pool is what the CLI sees
+        Files.deleteIfExists(out);
+        try (Tree tree = Tree.open(idx, "cache", Integer.toString(cachePages), "threads", Integer.toString(threads))) {
+            tree.extract(out);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package project3.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Single inserts into a growing index, keys in increasing or random order. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InsertBenchmark {
+
+    @Param({"sequential", "random"})
+    public String order;
+
+    @Param({"512", "4096"})
+    public int pageSize;
+
+    @Param({"64", "4096"})
+    public int cachePages;
+
+    @Param({"none", "commit"})
+    public String sync;
+
+    private Path dir;
+    private Tree tree;
+    private long next;
+
+    @Setup(Level.Iteration)
+    public void open() throws IOException {
+        dir = Files.createTempDirectory("p3-insert");
+        tree = Tree.open(dir.resolve("bench.idx"), "page-size", Integer.toString(pageSize),
+                "cache", Integer.toString(cachePages), "sync", sync);
+        next = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() throws IOException {
+        tree.close();
+        Tree.deleteTree(dir);
+    }
+
+    @Benchmark
+    public void insert() throws IOException {
+        long key = order.equals("sequential") ? next : Tree.mix(next);
+        next++;
+        tree.insert(key, key);
+        // the CLI's load commits every few thousand rows
+        if ((next & 4095) == 0) tree.commit();
+    }
+}
@@ -0,0 +1,72 @@
+package project3.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** The load command on a shuffled CSV, row by row or with --bulk, into a fresh index. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class LoadBenchmark {
+
+    @Param({"10000", "100000", "1000000", "10000000"})
+    public int rows;
+
+    @Param({"false", "true"})
+    public boolean bulk;
+
+    @Param({"4096"})
+    public int pageSize;
+
+    @Param({"4096"})
+    public int cachePages;
+
+    private Path dir;
+    private Path csv;
+    private Path idx;
+
+    @Setup(Level.Trial)
+    public void writeCsv() throws IOException {
+        dir = Files.createTempDirectory("p3-load");
+        csv = dir.resolve("rows.csv");
+        Tree.writeCsv(csv, rows, true, 7);
+    }
+
+    @Setup(Level.Invocation)
+    public void fresh() throws IOException {
+        idx = dir.resolve("bench.idx");
+        Files.deleteIfExists(idx);
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() throws IOException {
+        Tree.deleteTree(dir);
+    }
+
+    @Benchmark
+    public void load() throws IOException {
+        try (Tree tree = Tree.open(idx, "page-size", Integer.toString(pageSize),
+                "cache", Integer.toString(cachePages))) {
+            tree.load(csv, bulk);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package project3.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Point lookups that hit (even keys) or miss (odd keys) in a bulk-loaded index. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+
+    @Param({"1000000"})
+    public int rows;
+
+    @Param({"512", "4096"})
+    public int pageSize;
+
+    @Param({"64", "4096"})
+    public int cachePages;
+
+    @Param({"false", "true"})
+    public boolean mmap;
+
+    private Path dir;
+    private Tree tree;
+
+    @State(Scope.Thread)
+    public static class Probe {
+        long seed = Thread.currentThread().getId();
+        final long[] out = new long[1];
+    }
+
+    @Setup(Level.Trial)
+    public void build() throws IOException {
+        dir = Files.createTempDirectory("p3-search");
+        Path csv = dir.resolve("rows.csv");
+        Tree.writeCsv(csv, rows, false, 1);
+        tree = Tree.open(dir.resolve("bench.idx"), "page-size", Integer.toString(pageSize),
+                "cache", Integer.toString(cachePages), "mmap", Boolean.toString(mmap));
+        tree.load(csv, true);
+        tree.commit();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        tree.close();
+        Tree.deleteTree(dir);
+    }
+
+    @Benchmark
+    public boolean hit(Probe p) throws IOException {
+        p.seed = Tree.mix(p.seed);
+        return tree.lookup(2 * Long.remainderUnsigned(p.seed, rows), p.out);
+    }
+
+    @Benchmark
+    public boolean miss(Probe p) throws IOException {
+        p.seed = Tree.mix(p.seed);
+        return tree.lookup(2 * Long.remainderUnsigned(p.seed, rows) + 1, p.out);
+    }
+}
@@ -0,0 +1,173 @@
+package project3.bench;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Handle on one open Project3.BTree. Project3 lives in the unnamed package,
+ * which named packages cannot import (and JMH will not generate benchmarks in
+ * the unnamed package), so its API is bound once through method handles.
+ */
+final class Tree implements Closeable {
+
+    private static final MethodHandle FROM_FLAGS;
+    private static final MethodHandle OPEN;
+    private static final MethodHandle INSERT;
+    private static final MethodHandle LOOKUP;
+    private static final MethodHandle COMMIT;
+    private static final MethodHandle EXTRACT;
+    private static final MethodHandle CLOSE;
+    private static final MethodHandle LOAD;
+    private static final MethodHandle BULK_LOAD;
+
+    static {
+        try {
+            Class<?> project3 = Class.forName("Project3");
+            Class<?> btree = Class.forName("Project3$BTree");
+            Class<?> options = Class.forName("Project3$BTree$Options");
+            MethodHandles.Lookup p3 = MethodHandles.privateLookupIn(project3, MethodHandles.lookup());
+            MethodHandles.Lookup bt = MethodHandles.privateLookupIn(btree, MethodHandles.lookup());
+            MethodHandles.Lookup op = MethodHandles.privateLookupIn(options, MethodHandles.lookup());
+            FROM_FLAGS = op.findStatic(options, "fromFlags", MethodType.methodType(options, Map.class));
+            OPEN = bt.findConstructor(btree, MethodType.methodType(void.class, String.class, boolean.class, options));
+            INSERT = bt.findVirtual(btree, "insert", MethodType.methodType(void.class, long.class, long.class));
+            LOOKUP = bt.findVirtual(btree, "lookup", MethodType.methodType(boolean.class, long.class, long[].class));
+            COMMIT = bt.findVirtual(btree, "commit", MethodType.methodType(void.class));
+            EXTRACT = bt.findVirtual(btree, "extractCsv", MethodType.methodType(void.class, String.class));
+            CLOSE = bt.findVirtual(btree, "close", MethodType.methodType(void.class));
+            LOAD = p3.findStatic(project3, "loadCsvAndInsert",
+                    MethodType.methodType(void.class, btree, String.class));
+            BULK_LOAD = p3.findStatic(project3, "bulkLoadCsv",
+                    MethodType.methodType(void.class, btree, String.class, double.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Object tree;
+
+    private Tree(Object tree) {
+        this.tree = tree;
+    }
+
+    /**
+     * Creates (if missing) and opens an index. The flags are the command line
+     * options without their leading "--", e.g. {"cache", "64"}.
+     */
+    static Tree open(Path file, String... flags) throws IOException {
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i + 1 < flags.length; i += 2) map.put(flags[i], flags[i + 1]);
+        try {
+            return new Tree(OPEN.invoke(file.toString(), true, FROM_FLAGS.invoke(map)));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    void insert(long key, long value) throws IOException {
+        try {
+            INSERT.invoke(tree, key, value);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    boolean lookup(long key, long[] out) throws IOException {
+        try {
+            return (boolean) LOOKUP.invoke(tree, key, out);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    void commit() throws IOException {
+        try {
+            COMMIT.invoke(tree);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    void extract(Path csv) throws IOException {
+        try {
+            EXTRACT.invoke(tree, csv.toString());
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /** The {@code load} command: one insert per row, or a bottom-up build with bulk. */
+    void load(Path csv, boolean bulk) throws IOException {
+        try {
+            if (bulk) BULK_LOAD.invoke(tree, csv.toString(), 1.0);
+            else LOAD.invoke(tree, csv.toString());
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            CLOSE.invoke(tree);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /** Even keys 0, 2, 4, ... in sorted or shuffled order; probing odd keys always misses. */
+    static void writeCsv(Path csv, int rows, boolean shuffled, long seed) throws IOException {
+        long[] keys = new long[rows];
+        for (int i = 0; i < rows; i++) keys[i] = 2L * i;
+        if (shuffled) {
+            long s = seed;
+            for (int i = rows - 1; i > 0; i--) {
+                s = mix(s);
+                int j = (int) Long.remainderUnsigned(s, i + 1);
+                long k = keys[i];
+                keys[i] = keys[j];
+                keys[j] = k;
+            }
+        }
+        try (BufferedWriter w = Files.newBufferedWriter(csv)) {
+            for (long k : keys) {
+                w.write(Long.toUnsignedString(k));
+                w.write(',');
+                w.write(Long.toUnsignedString(k ^ 0x5555));
+                w.write('\n');
+            }
+        }
+    }
+
+    /** SplitMix64 step: a cheap, allocation-free key sequence for the benchmark loops. */
+    static long mix(long x) {
+        x += 0x9E3779B97F4A7C15L;
+        x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+        x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+        return x ^ (x >>> 31);
+    }
+
+    static void deleteTree(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) return;
+        try (Stream<Path> s = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) s.sorted(Comparator.reverseOrder())::iterator) Files.delete(p);
+        }
+    }
+
+    private static IOException rethrow(Throwable t) {
+        if (t instanceof IOException) return (IOException) t;
+        if (t instanceof RuntimeException) throw (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+        return new IOException(t);
+    }
+}
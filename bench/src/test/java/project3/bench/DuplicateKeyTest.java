@@ -0,0 +1,99 @@
+package project3.bench;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Of several inserts of one key, a search answers with the newest: from the
+ * write buffer, from the tree once the buffer is merged, and from a tree built
+ * without a buffer alike. Small pages and t = 2 make every few inserts split.
+ */
+class DuplicateKeyTest {
+
+    private Path dir;
+
+    @BeforeEach
+    void createDir() throws IOException {
+        dir = Files.createTempDirectory("p3-dup");
+    }
+
+    @AfterEach
+    void deleteDir() throws IOException {
+        Tree.deleteTree(dir);
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void newestDuplicateBeforeAndAfterMerge(boolean bplus) throws IOException {
+        Path file = dir.resolve("dup.idx");
+        try (Tree tree = open(file, bplus, "100")) {
+            tree.insert(1, 0);
+            tree.insert(5, 1);
+            tree.insert(5, 2);
+            tree.insert(6, 0);
+            assertValue(tree, 5, 2);
+        }
+        // closing merged the buffer into the tree
+        try (Tree tree = open(file, bplus, "0")) {
+            assertValue(tree, 5, 2);
+        }
+        try (Tree tree = open(dir.resolve("plain.idx"), bplus, "0")) {
+            tree.insert(1, 0);
+            tree.insert(5, 1);
+            tree.insert(5, 2);
+            tree.insert(6, 0);
+            assertValue(tree, 5, 2);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void newestDuplicateAcrossMerges(boolean bplus) throws IOException {
+        Random random = new Random(bplus ? 2 : 1);
+        Map<Long, Long> newest = new HashMap<>();
+        long[] out = new long[1];
+        // a buffer of 7 merges between most checks, and the splits put copies
+        // of a key in both internal nodes and leaves
+        try (Tree tree = open(dir.resolve("dup.idx"), bplus, "7")) {
+            for (int i = 0; i < 2000; i++) {
+                long key = random.nextInt(40);
+                long value = random.nextInt(1_000_000);
+                tree.insert(key, value);
+                newest.put(key, value);
+                long probe = random.nextInt(45);
+                if (newest.containsKey(probe)) {
+                    assertValue(tree, probe, newest.get(probe));
+                } else {
+                    assertFalse(tree.lookup(probe, out), "key " + probe);
+                }
+            }
+        }
+        try (Tree tree = open(dir.resolve("dup.idx"), bplus, "0")) {
+            for (Map.Entry<Long, Long> e : newest.entrySet()) assertValue(tree, e.getKey(), e.getValue());
+        }
+    }
+
+    private static Tree open(Path file, boolean bplus, String memtable) throws IOException {
+        return Tree.open(file, "page-size", "512", "degree", "2", "bplus", Boolean.toString(bplus),
+                "memtable", memtable);
+    }
+
+    private static void assertValue(Tree tree, long key, long value) throws IOException {
+        long[] out = new long[1];
+        assertTrue(tree.lookup(key, out), "key " + key);
+        assertEquals(value, out[0], "key " + key);
+    }
+}